@@ -0,0 +1,95 @@
+package com.ibm.streamsx.rabbitmq;
+
+import java.io.IOException;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+
+import com.ibm.streams.operator.logging.TraceLevel;
+import com.rabbitmq.client.Channel;
+
+/**
+ * Coalesces the acknowledgements of a consumer's deliveries. Instead of one ack
+ * frame per message, a single basicAck(tag, multiple=true) acknowledges
+ * everything up to the latest delivered tag once ackBatchSize deliveries are
+ * pending, or when {@link #flush()} is called by the periodic timer. A held
+ * delivery, such as a chunk of a message that is not complete yet, keeps it
+ * and all later deliveries from being acknowledged until it is released.
+ */
+public class AckBatcher {
+
+	private final Logger trace = Logger.getLogger(this.getClass().getCanonicalName());
+
+	private final Channel channel;
+	private final int batchSize;
+
+	private final TreeSet<Long> heldTags = new TreeSet<Long>();
+	private long latestTag = 0;
+	private long ackedTag = 0;
+	private int pending = 0;
+
+	/**
+	 * @param channel	The channel the deliveries were received on.
+	 * @param batchSize	The number of deliveries that triggers an ack.
+	 */
+	public AckBatcher(Channel channel, int batchSize) {
+		this.channel = channel;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Records that the delivery has been processed and can be acknowledged.
+	 */
+	public synchronized void delivered(long deliveryTag) {
+		if (deliveryTag > latestTag) {
+			latestTag = deliveryTag;
+		}
+		if (++pending >= batchSize) {
+			flush();
+		}
+	}
+
+	/**
+	 * Keeps the delivery from being acknowledged until it is released.
+	 */
+	public synchronized void hold(long deliveryTag) {
+		heldTags.add(deliveryTag);
+	}
+
+	public synchronized int getHeldCount() {
+		return heldTags.size();
+	}
+
+	/**
+	 * Releases a held delivery.
+	 * @param processed	true if the delivery can be acknowledged, false if it
+	 * 					has been rejected.
+	 */
+	public synchronized void release(long deliveryTag, boolean processed) {
+		heldTags.remove(deliveryTag);
+		if (processed) {
+			delivered(deliveryTag);
+		}
+	}
+
+	/**
+	 * Acknowledges the pending deliveries up to the first held one.
+	 */
+	public synchronized void flush() {
+		long ackTag = heldTags.isEmpty() ? latestTag : Math.min(latestTag, heldTags.first() - 1);
+		if (pending == 0 || ackTag <= ackedTag) {
+			return;
+		}
+		try {
+			channel.basicAck(ackTag, true);
+			ackedTag = ackTag;
+			if (trace.isLoggable(TraceLevel.DEBUG))
+				trace.log(TraceLevel.DEBUG, "Acknowledged messages up to delivery tag: " + ackTag); //$NON-NLS-1$
+		} catch (IOException | RuntimeException e) {
+			// The broker redelivers unacknowledged messages once the channel is gone
+			trace.log(TraceLevel.WARN, "Failed to acknowledge messages up to delivery tag " + ackTag + ": " + e.getMessage()); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		if (ackTag == latestTag) {
+			pending = 0;
+		}
+	}
+}
@@ -5,7 +5,7 @@
 package com.ibm.streamsx.rabbitmq;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.Set;
 
@@ -14,17 +14,22 @@ import com.ibm.streams.operator.OutputTuple;
 import com.ibm.streams.operator.StreamSchema;
 import com.ibm.streams.operator.Tuple;
 import com.ibm.streams.operator.Type.MetaType;
-import com.ibm.streams.operator.types.Blob;
+import com.ibm.streams.operator.types.RString;
 import com.ibm.streams.operator.types.ValueFactory;
 import com.ibm.streamsx.rabbitmq.i18n.Messages;
 
 //Helper to check if attributes have been specified explicitly
 class AttributeHelper {
 	static final Charset CS = Charset.forName("UTF-8");  //$NON-NLS-1$
+	private static final RString EMPTY_RSTRING = new RString(new byte[0]);
 	private boolean wasSet = false, isAvailable = false;
 	private MetaType mType = null;
 	private String name = null;
+	// resolved once from the schema, so tuples are not accessed by name
+	private int index = -1;
 	private boolean isString = false;
+	// rstring values are UTF-8 bytes already, they are read and written without decoding
+	private boolean isRString = false;
 	
 	AttributeHelper(String n) {
 		this.name = n;
@@ -42,6 +47,10 @@ class AttributeHelper {
 		return name;
 	}
 
+	int getIndex() {
+		return index;
+	}
+
 	void setName(String name) {
 		this.name = name;
 		wasSet = true;
@@ -56,8 +65,10 @@ class AttributeHelper {
 				throw new IllegalArgumentException(Messages.getString("ATTRIBUTE_NOT_FOUND", name )); //$NON-NLS-1$
 			return;
 		}
+		this.index = a.getIndex();
 		this.mType = a.getType().getMetaType();
 		isString = mType == MetaType.RSTRING || mType == MetaType.USTRING;
+		isRString = mType == MetaType.RSTRING;
 		
 		if(!supportedTypes.contains(mType)){
 			throw new Exception(Messages.getString("ATTRIBUTE_MUST_BE_ONE_OF", name, supportedTypes)); //$NON-NLS-1$
@@ -73,40 +84,53 @@ class AttributeHelper {
 		if(isString) {
 			if (value == null)
 				value = ""; //$NON-NLS-1$
-			otup.setString(name, value);
+			otup.setString(index, value);
 		} else 
-			otup.setBlob(name, ValueFactory.newBlob(value.getBytes(CS)));
+			otup.setBlob(index, ValueFactory.newBlob(value.getBytes(CS)));
 	}
 	void setValue(OutputTuple otup, byte[] value) {
 		if(!isAvailable) return;
-		if(isString) {
+		if(isRString) {
+			otup.setObject(index, value == null ? EMPTY_RSTRING : new RString(value));
+		}
+		else if(isString) {
 			if (value == null)
-				otup.setString(name,""); //$NON-NLS-1$
+				otup.setString(index,""); //$NON-NLS-1$
 			else 
-				otup.setString(name, new String(value, CS));
+				otup.setString(index, new String(value, CS));
 		}
 		else 
-			otup.setBlob(name, ValueFactory.newBlob(value));
+			// the client allocates a new body for every delivery, so it is wrapped without a copy
+			otup.setBlob(index, ValueFactory.newBlob(value));
 	}
 	
 	String getString(Tuple tuple) throws IOException {
 		if(!isAvailable) return null;
 		if(isString)
-			return tuple.getString(name);
-        return new String(getBytesFromBlob(tuple, name));
+			return tuple.getString(index);
+        return new String(getBytesFromBlob(tuple, index));
 	}
 	byte[] getBytes(Tuple tuple) throws IOException {
 		if(!isAvailable) return null;
+		if(isRString)
+			return ((RString) tuple.getObject(index)).getData();
 		if(isString)
-			return tuple.getString(name).getBytes(CS);
-		return getBytesFromBlob(tuple, name);
+			return tuple.getString(index).getBytes(CS);
+		return getBytesFromBlob(tuple, index);
 	}
-	private static byte[] getBytesFromBlob(Tuple tuple, String name) throws IOException {
-		Blob blockMsg = tuple.getBlob(name);
-        InputStream inputStream = blockMsg.getInputStream();
-        int length = (int) blockMsg.getLength();
-        byte[] byteArray = new byte[length];
-        inputStream.read(byteArray, 0, length);
-        return byteArray;
+	/*
+	 * The message is only read, so if the blob is backed by an array that holds 
+	 * exactly its bytes, that array is used as is. Otherwise the bytes are 
+	 * copied once, in full.
+	 */
+	private static byte[] getBytesFromBlob(Tuple tuple, int index) {
+		ByteBuffer buffer = tuple.getBlob(index).getByteBuffer();
+		if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0
+				&& buffer.remaining() == buffer.array().length) {
+			return buffer.array();
+		}
+		byte[] byteArray = new byte[buffer.remaining()];
+		buffer.get(byteArray);
+		return byteArray;
 	}
 }
@@ -3,6 +3,7 @@ package com.ibm.streamsx.rabbitmq;
 import java.util.logging.Logger;
 
 import com.ibm.streams.operator.logging.TraceLevel;
+import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.Recoverable;
 import com.rabbitmq.client.RecoveryListener;
 
@@ -28,6 +29,11 @@ public class AutoRecoveryListener implements RecoveryListener {
 	public void handleRecovery(Recoverable arg0) {
 		trace.log(TraceLevel.INFO, "Recovered RabbitMQ connection."); //$NON-NLS-1$
 		rabbitMQOp.setIsConnectedValue(1);
+		if (arg0 instanceof Connection) {
+			// a recovered connection starts out unblocked
+			rabbitMQOp.setConnectionBlocked((Connection) arg0, false);
+		}
+		rabbitMQOp.connectionRecovered();
 	}
 
 
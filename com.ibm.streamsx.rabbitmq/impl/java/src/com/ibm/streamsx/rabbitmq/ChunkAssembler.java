@@ -0,0 +1,213 @@
+package com.ibm.streamsx.rabbitmq;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.ibm.streams.operator.logging.TraceLevel;
+import com.ibm.streams.operator.metrics.Metric;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Puts large messages together again that RabbitMQSink has split into
+ * chunks. Each chunk carries the id of its message, its index and the number
+ * of chunks in its headers. The chunks of incomplete messages are buffered up
+ * to a maximum number of bytes; when the buffer is full, or a message has not
+ * been completed within the timeout, the oldest incomplete message is evicted.
+ * The deliveries of the chunks are settled once their message has been
+ * submitted, and discarded once it has been evicted, so that no chunk is
+ * acknowledged before its message has been submitted.
+ */
+class ChunkAssembler {
+
+	/**
+	 * The delivery of a chunk.
+	 */
+	interface ChunkDelivery {
+		/**
+		 * @param processed	true if the message has been submitted,
+		 * 					false if it must be delivered again.
+		 */
+		void settle(boolean processed);
+
+		/**
+		 * Called when the message has been evicted. The chunk must not be
+		 * delivered again, nor be acknowledged as if it had been processed.
+		 */
+		void discard();
+	}
+
+	static final String CHUNK_ID = "x-streamsx-chunk-id"; //$NON-NLS-1$
+	static final String CHUNK_INDEX = "x-streamsx-chunk-index"; //$NON-NLS-1$
+	static final String CHUNK_COUNT = "x-streamsx-chunk-count"; //$NON-NLS-1$
+
+	static class AssembledMessage {
+		final BasicProperties props;
+		final byte[] message;
+		// to be settled by the caller
+		final List<ChunkDelivery> deliveries;
+
+		AssembledMessage(BasicProperties props, byte[] message, List<ChunkDelivery> deliveries) {
+			this.props = props;
+			this.message = message;
+			this.deliveries = deliveries;
+		}
+	}
+
+	private static class Partial {
+		final BasicProperties props;
+		final byte[][] chunks;
+		final List<ChunkDelivery> deliveries = new ArrayList<ChunkDelivery>();
+		final long createdNanos = System.nanoTime();
+		int received = 0;
+		long bytes = 0;
+
+		Partial(BasicProperties props, int count) {
+			this.props = props;
+			this.chunks = new byte[count][];
+		}
+	}
+
+	private final Logger trace = Logger.getLogger(this.getClass().getCanonicalName());
+
+	// in the order the messages started to arrive, the oldest first
+	private final LinkedHashMap<String, Partial> partials = new LinkedHashMap<String, Partial>();
+	private final long maxBytes;
+	private final long timeoutNanos;
+	private long bufferedBytes = 0;
+
+	private final Metric bufferedBytesMetric;
+	private final Metric evictedMessages;
+
+	/**
+	 * @param maxBytes			The maximum number of bytes of incomplete messages.
+	 * @param timeoutMillis		The time within which all chunks of a message must arrive.
+	 * @param bufferedBytes		Gauge updated with the number of bytes of incomplete messages.
+	 * @param evictedMessages	Counter incremented for each incomplete message that is evicted.
+	 */
+	ChunkAssembler(long maxBytes, long timeoutMillis, Metric bufferedBytes, Metric evictedMessages) {
+		this.maxBytes = maxBytes;
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		this.bufferedBytesMetric = bufferedBytes;
+		this.evictedMessages = evictedMessages;
+	}
+
+	static boolean isChunk(BasicProperties props) {
+		Map<String, Object> headers = props.getHeaders();
+		return headers != null && headers.get(CHUNK_ID) != null && headers.get(CHUNK_INDEX) != null
+				&& headers.get(CHUNK_COUNT) != null;
+	}
+
+	/**
+	 * @throws NumberFormatException if the chunk count header is not valid.
+	 */
+	static int getChunkCount(BasicProperties props) {
+		return Integer.parseInt(props.getHeaders().get(CHUNK_COUNT).toString());
+	}
+
+	/**
+	 * Adds a chunk. Header values may have been turned into strings on the way,
+	 * so they are parsed from their string form.
+	 * @param delivery	Settled with the message, unless the chunk headers are not valid.
+	 * @return the complete message once all of its chunks have arrived, otherwise null.
+	 * @throws NumberFormatException if the chunk headers are not valid.
+	 */
+	synchronized AssembledMessage add(BasicProperties props, byte[] chunk, ChunkDelivery delivery) {
+		Map<String, Object> headers = props.getHeaders();
+		String id = headers.get(CHUNK_ID).toString();
+		int index = Integer.parseInt(headers.get(CHUNK_INDEX).toString());
+		int count = getChunkCount(props);
+		if (count <= 0 || index < 0 || index >= count) {
+			throw new NumberFormatException("Invalid chunk " + index + " of " + count); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+
+		evictExpired();
+
+		Partial partial = partials.get(id);
+		if (partial == null) {
+			partial = new Partial(props, count);
+			partials.put(id, partial);
+		}
+		partial.deliveries.add(delivery);
+		if (partial.chunks.length != count || partial.chunks[index] != null) {
+			// delivered again
+			return null;
+		}
+		partial.chunks[index] = chunk;
+		partial.received++;
+		partial.bytes += chunk.length;
+		bufferedBytes += chunk.length;
+
+		AssembledMessage assembled = null;
+		if (partial.received == count) {
+			partials.remove(id);
+			bufferedBytes -= partial.bytes;
+			assembled = assemble(partial);
+		} else {
+			while (bufferedBytes > maxBytes && !partials.isEmpty()) {
+				evictOldest("the chunk buffer is full"); //$NON-NLS-1$
+			}
+		}
+		bufferedBytesMetric.setValue(bufferedBytes);
+		return assembled;
+	}
+
+	/**
+	 * Evicts the messages whose chunks did not all arrive within the timeout.
+	 */
+	synchronized void evictExpired() {
+		long now = System.nanoTime();
+		Iterator<Partial> it = partials.values().iterator();
+		while (it.hasNext() && now - it.next().createdNanos > timeoutNanos) {
+			evictOldest("not all of its chunks arrived in time"); //$NON-NLS-1$
+			it = partials.values().iterator();
+		}
+		bufferedBytesMetric.setValue(bufferedBytes);
+	}
+
+	/**
+	 * Discards all incomplete messages without settling their deliveries, for
+	 * example because their chunks will be delivered again on a new channel.
+	 */
+	synchronized void clear() {
+		partials.clear();
+		bufferedBytes = 0;
+		bufferedBytesMetric.setValue(0);
+	}
+
+	private void evictOldest(String reason) {
+		Iterator<Map.Entry<String, Partial>> it = partials.entrySet().iterator();
+		Map.Entry<String, Partial> oldest = it.next();
+		it.remove();
+		bufferedBytes -= oldest.getValue().bytes;
+		evictedMessages.increment();
+		trace.log(TraceLevel.WARN, "Dropping chunked message " + oldest.getKey() + ", " + reason); //$NON-NLS-1$ //$NON-NLS-2$
+		for (ChunkDelivery delivery : oldest.getValue().deliveries) {
+			delivery.discard();
+		}
+	}
+
+	/*
+	 * The message gets the properties of its first arriving chunk, without the chunk headers.
+	 */
+	private static AssembledMessage assemble(Partial partial) {
+		byte[] message = new byte[(int) partial.bytes];
+		int position = 0;
+		for (byte[] chunk : partial.chunks) {
+			System.arraycopy(chunk, 0, message, position, chunk.length);
+			position += chunk.length;
+		}
+
+		Map<String, Object> headers = new HashMap<String, Object>(partial.props.getHeaders());
+		headers.remove(CHUNK_ID);
+		headers.remove(CHUNK_INDEX);
+		headers.remove(CHUNK_COUNT);
+		BasicProperties props = partial.props.builder().headers(headers.isEmpty() ? null : headers).build();
+		return new AssembledMessage(props, message, partial.deliveries);
+	}
+}
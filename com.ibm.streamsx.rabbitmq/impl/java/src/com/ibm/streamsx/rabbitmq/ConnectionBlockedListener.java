@@ -0,0 +1,44 @@
+package com.ibm.streamsx.rabbitmq;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import com.ibm.streams.operator.logging.TraceLevel;
+import com.rabbitmq.client.BlockedListener;
+import com.rabbitmq.client.Connection;
+
+public class ConnectionBlockedListener implements BlockedListener {
+
+	private final Logger trace = Logger.getLogger(this.getClass().getCanonicalName());
+	
+	// We use the base operator class to update metrics values
+	private RabbitMQBaseOper	rabbitMQOp	= null;
+	private Connection			connection	= null;
+	
+
+	
+	/**
+	 * Initializes the listener with the operator.
+	 * @param op			The RabbitMQ operator (Source or Sink) to report the blocked state to.
+	 * @param connection	The connection this listener is registered on.
+	 */
+	public ConnectionBlockedListener(RabbitMQBaseOper op, Connection connection) {
+		this.rabbitMQOp = op;
+		this.connection = connection;
+	}
+	
+	
+	@Override
+	public void handleBlocked(String reason) throws IOException {
+		trace.log(TraceLevel.WARN, "RabbitMQ connection blocked by the broker: " + reason); //$NON-NLS-1$
+		rabbitMQOp.setConnectionBlocked(connection, true);
+	}
+
+
+	@Override
+	public void handleUnblocked() throws IOException {
+		trace.log(TraceLevel.INFO, "RabbitMQ connection unblocked by the broker."); //$NON-NLS-1$
+		rabbitMQOp.setConnectionBlocked(connection, false);
+	}
+
+}
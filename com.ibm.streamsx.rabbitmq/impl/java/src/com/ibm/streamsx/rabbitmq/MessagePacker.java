@@ -0,0 +1,155 @@
+package com.ibm.streamsx.rabbitmq;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Packs the messages of several tuples into one AMQP message, so that the
+ * broker handles one message instead of many small ones. Messages are packed
+ * per routing key. A pack is made of frames, each an int length followed by
+ * the bytes of one message, and is marked with {@link #PACKED_CONTENT_TYPE}
+ * so that RabbitMQSource can unpack it again.
+ * <p>
+ * Packs that are ready to go are queued and sent outside the lock that
+ * messages are added under, so that a slow publish does not hold up the
+ * threads that add messages. One thread at a time sends the queued packs, in
+ * the order they were queued.
+ */
+class MessagePacker {
+
+	static final String PACKED_CONTENT_TYPE = "application/vnd.streamsx.rabbitmq.packed"; //$NON-NLS-1$
+
+	interface Sender {
+		/**
+		 * Sends a pack. Failures must be handled by the sender.
+		 */
+		void send(String routingKey, byte[] packed);
+	}
+
+	private static class Pack {
+		final String routingKey;
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		int count = 0;
+
+		Pack(String routingKey) {
+			this.routingKey = routingKey;
+		}
+	}
+
+	private final Map<String, Pack> packs = new HashMap<String, Pack>();
+	private final ArrayDeque<Pack> ready = new ArrayDeque<Pack>();
+	private final Object sendLock = new Object();
+	private final Sender sender;
+	private final int packSize;
+
+	/**
+	 * @param sender	Sends a full or flushed pack.
+	 * @param packSize	The number of messages in a full pack.
+	 */
+	MessagePacker(Sender sender, int packSize) {
+		this.sender = sender;
+		this.packSize = packSize;
+	}
+
+	void add(String routingKey, byte[] message) throws IOException {
+		boolean full;
+		synchronized (this) {
+			Pack pack = packs.get(routingKey);
+			if (pack == null) {
+				pack = new Pack(routingKey);
+				packs.put(routingKey, pack);
+			}
+			pack.out.writeInt(message.length);
+			pack.out.write(message);
+			pack.count++;
+			full = pack.count >= packSize;
+			if (full) {
+				ready.add(packs.remove(routingKey));
+			}
+		}
+		if (full) {
+			sendReady();
+		}
+	}
+
+	/**
+	 * Sends the pack of a routing key, if there is one. Returns once it has
+	 * been sent.
+	 */
+	void flush(String routingKey) {
+		synchronized (this) {
+			Pack pack = packs.remove(routingKey);
+			if (pack == null) {
+				return;
+			}
+			ready.add(pack);
+		}
+		sendReady();
+	}
+
+	/**
+	 * Sends all packs.
+	 */
+	void flushAll() {
+		synchronized (this) {
+			ready.addAll(packs.values());
+			packs.clear();
+		}
+		sendReady();
+	}
+
+	/**
+	 * Discards all packs, for example because the tuples will be submitted
+	 * again after a consistent region reset.
+	 */
+	synchronized void clear() {
+		packs.clear();
+		ready.clear();
+	}
+
+	/*
+	 * If another thread is sending, we wait for it, and send what it left.
+	 */
+	private void sendReady() {
+		synchronized (sendLock) {
+			Pack pack;
+			while ((pack = pollReady()) != null) {
+				sender.send(pack.routingKey, pack.bytes.toByteArray());
+			}
+		}
+	}
+
+	private synchronized Pack pollReady() {
+		return ready.poll();
+	}
+
+	/**
+	 * Splits a pack into its messages.
+	 * @throws IOException if the pack is not made of complete frames.
+	 */
+	static List<byte[]> unpack(byte[] packed) throws IOException {
+		List<byte[]> messages = new ArrayList<byte[]>();
+		ByteBuffer buffer = ByteBuffer.wrap(packed);
+		while (buffer.hasRemaining()) {
+			if (buffer.remaining() < 4) {
+				throw new IOException("Truncated frame length in packed message"); //$NON-NLS-1$
+			}
+			int length = buffer.getInt();
+			if (length < 0 || length > buffer.remaining()) {
+				throw new IOException("Invalid frame length in packed message: " + length); //$NON-NLS-1$
+			}
+			byte[] message = new byte[length];
+			buffer.get(message);
+			messages.add(message);
+		}
+		return messages;
+	}
+}
@@ -0,0 +1,30 @@
+package com.ibm.streamsx.rabbitmq;
+
+import java.io.IOException;
+
+/**
+ * Compresses and decompresses message bodies. The name of a codec is sent as
+ * the contentEncoding property of the message, so that the consumer knows how
+ * to decode it.
+ * <p>
+ * Besides the built-in "deflate" and "gzip" codecs, further codecs can be
+ * added by putting a jar in the opt/downloaded directory of the toolkit that
+ * lists the implementation in
+ * META-INF/services/com.ibm.streamsx.rabbitmq.PayloadCodec.
+ * Implementations must be thread-safe.
+ */
+public interface PayloadCodec {
+
+	/**
+	 * @return the name of the codec, which is also the content encoding of the messages.
+	 */
+	String getName();
+
+	byte[] encode(byte[] data) throws IOException;
+
+	/**
+	 * @param maxSize	The maximum size of the decoded data.
+	 * @throws IOException if the data cannot be decoded, or if it would decode to more than maxSize bytes.
+	 */
+	byte[] decode(byte[] data, int maxSize) throws IOException;
+}
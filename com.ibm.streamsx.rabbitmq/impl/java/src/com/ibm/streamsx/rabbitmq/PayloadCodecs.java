@@ -0,0 +1,122 @@
+package com.ibm.streamsx.rabbitmq;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Looks up the {@link PayloadCodec} for a content encoding: one of the
+ * built-in JDK codecs, or one that is registered as a service.
+ */
+class PayloadCodecs {
+
+	static final String DEFLATE = "deflate"; //$NON-NLS-1$
+	static final String GZIP = "gzip"; //$NON-NLS-1$
+
+	private static final ConcurrentMap<String, PayloadCodec> codecs = new ConcurrentHashMap<String, PayloadCodec>();
+	// encodings without a codec, so that the services are not searched for every message
+	private static final Set<String> unknown = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	static {
+		codecs.put(DEFLATE, new DeflateCodec());
+		codecs.put(GZIP, new GzipCodec());
+	}
+
+	private PayloadCodecs() {
+	}
+
+	/**
+	 * @return the codec with this name, or null if there is none.
+	 */
+	static PayloadCodec get(String name) {
+		PayloadCodec codec = codecs.get(name);
+		if (codec != null || unknown.contains(name)) {
+			return codec;
+		}
+		for (PayloadCodec provided : ServiceLoader.load(PayloadCodec.class, PayloadCodecs.class.getClassLoader())) {
+			if (provided.getName().equals(name)) {
+				PayloadCodec previous = codecs.putIfAbsent(name, provided);
+				return previous != null ? previous : provided;
+			}
+		}
+		unknown.add(name);
+		return null;
+	}
+
+	private static class DeflateCodec implements PayloadCodec {
+		@Override
+		public String getName() {
+			return DEFLATE;
+		}
+
+		@Override
+		public byte[] encode(byte[] data) throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 2 + 16);
+			write(new DeflaterOutputStream(bytes), data);
+			return bytes.toByteArray();
+		}
+
+		@Override
+		public byte[] decode(byte[] data, int maxSize) throws IOException {
+			return read(new InflaterInputStream(new ByteArrayInputStream(data)), data.length, maxSize);
+		}
+	}
+
+	private static class GzipCodec implements PayloadCodec {
+		@Override
+		public String getName() {
+			return GZIP;
+		}
+
+		@Override
+		public byte[] encode(byte[] data) throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 2 + 32);
+			write(new GZIPOutputStream(bytes), data);
+			return bytes.toByteArray();
+		}
+
+		@Override
+		public byte[] decode(byte[] data, int maxSize) throws IOException {
+			return read(new GZIPInputStream(new ByteArrayInputStream(data)), data.length, maxSize);
+		}
+	}
+
+	private static void write(OutputStream out, byte[] data) throws IOException {
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+
+	/*
+	 * A small message can decompress to a huge one, so we stop reading at maxSize.
+	 */
+	private static byte[] read(InputStream in, int sizeHint, int maxSize) throws IOException {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.min(sizeHint * 4L, maxSize));
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				if (n > maxSize - bytes.size()) {
+					throw new IOException("Decoded message is larger than " + maxSize + " bytes"); //$NON-NLS-1$ //$NON-NLS-2$
+				}
+				bytes.write(buffer, 0, n);
+			}
+			return bytes.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package com.ibm.streamsx.rabbitmq;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import com.ibm.streams.operator.logging.TraceLevel;
+import com.ibm.streams.operator.metrics.Metric;
+import com.rabbitmq.client.Channel;
+
+/**
+ * Sets and adjusts the prefetch count (basicQos) of a consumer channel.
+ * <p>
+ * RabbitMQ does not implement a prefetch size in bytes, so a byte limit is
+ * enforced by converting it into a prefetch count based on the average size
+ * of the messages received since the last adjustment. In adaptive mode, the
+ * prefetch count is halved while submitting tuples takes longer than the
+ * target latency (downstream is slow), and doubled while it is well below.
+ * While the consumer is paused, the channel limit is lowered to the messages
+ * the consumer has to hold, and the adjusted prefetch count takes effect when
+ * it resumes.
+ */
+public class PrefetchController {
+
+	// prefetch-count is an unsigned short in AMQP 0-9-1
+	static final int MAX_PREFETCH_COUNT = 65535;
+
+	private final Logger trace = Logger.getLogger(this.getClass().getCanonicalName());
+
+	private final Channel channel;
+	private final int minCount;
+	private final int maxCount;
+	private final long byteLimit;
+	private final boolean adaptive;
+	private final long targetLatencyNanos;
+	private final Metric prefetchCountMetric;
+
+	private volatile int current;
+	private boolean paused = false;
+
+	// measured by the consumer since the last adjustment
+	private long deliveries = 0;
+	private long submitNanos = 0;
+	private long bodyBytes = 0;
+
+	/**
+	 * @param channel				The consumer channel.
+	 * @param minCount				The lowest prefetch count adaptive mode and the byte limit set.
+	 * @param maxCount				The configured prefetch count, or 0 if unlimited.
+	 * @param byteLimit				The maximum number of unacknowledged bytes, or 0 if unlimited.
+	 * @param adaptive				Whether to adapt the prefetch count to the submit latency.
+	 * @param targetLatencyNanos	The submit latency adaptive mode aims for.
+	 * @param prefetchCountMetric	Gauge updated with the prefetch count in effect.
+	 */
+	public PrefetchController(Channel channel, int minCount, int maxCount, long byteLimit, boolean adaptive,
+			long targetLatencyNanos, Metric prefetchCountMetric) {
+		this.channel = channel;
+		this.maxCount = maxCount > 0 ? Math.min(maxCount, MAX_PREFETCH_COUNT) : MAX_PREFETCH_COUNT;
+		this.minCount = Math.max(1, Math.min(minCount, this.maxCount));
+		this.byteLimit = byteLimit;
+		this.adaptive = adaptive;
+		this.targetLatencyNanos = targetLatencyNanos;
+		this.prefetchCountMetric = prefetchCountMetric;
+	}
+
+	/**
+	 * Whether deliveries have to be measured for {@link #adjust()}.
+	 */
+	public boolean isDynamic() {
+		return adaptive || byteLimit > 0;
+	}
+
+	/**
+	 * Applies the initial prefetch count. Must be called before the consumer is registered.
+	 */
+	public void start(int initialCount) throws IOException {
+		apply(initialCount > 0 ? Math.min(initialCount, maxCount) : (isDynamic() ? minCount : 0));
+	}
+
+	public synchronized void recordDelivery(int bodySize, long submitTimeNanos) {
+		deliveries++;
+		bodyBytes += bodySize;
+		submitNanos += submitTimeNanos;
+	}
+
+	/**
+	 * Recomputes the prefetch count from the deliveries measured since the last call.
+	 */
+	public void adjust() {
+		long count, bytes, nanos;
+		synchronized (this) {
+			count = deliveries;
+			bytes = bodyBytes;
+			nanos = submitNanos;
+			deliveries = bodyBytes = submitNanos = 0;
+		}
+		if (count == 0) {
+			return;
+		}
+
+		long target = adaptive ? current : maxCount;
+		if (adaptive) {
+			long meanLatency = nanos / count;
+			if (meanLatency > targetLatencyNanos) {
+				target = current / 2;
+			} else if (meanLatency < targetLatencyNanos / 2) {
+				target = current * 2L;
+			}
+			target = Math.max(minCount, Math.min(maxCount, target));
+		}
+		if (byteLimit > 0) {
+			long meanSize = Math.max(1, bytes / count);
+			target = Math.max(minCount, Math.min(target, byteLimit / meanSize));
+		}
+
+		if (target != current) {
+			try {
+				apply((int) target);
+			} catch (IOException | RuntimeException e) {
+				trace.log(TraceLevel.WARN, "Failed to change the prefetch count: " + e.getMessage()); //$NON-NLS-1$
+			}
+		}
+	}
+
+	/**
+	 * @return the prefetch count in effect while the consumer is not paused.
+	 */
+	public int getCurrentCount() {
+		return current;
+	}
+
+	/**
+	 * @return the highest prefetch count this controller sets.
+	 */
+	public int getMaxCount() {
+		return maxCount;
+	}
+
+	/**
+	 * Keeps the broker from sending more messages while the consumer has
+	 * unacknowledged messages.
+	 * @param held	The number of messages the consumer holds unacknowledged
+	 * 				until further messages arrive, the limit is not set below it.
+	 */
+	public synchronized void pause(int held) throws IOException {
+		channel.basicQos(Math.max(1, Math.min(held, MAX_PREFETCH_COUNT)), true);
+		paused = true;
+	}
+
+	public synchronized void resume() throws IOException {
+		channel.basicQos(current, true);
+		paused = false;
+	}
+
+	private synchronized void apply(int count) throws IOException {
+		// global=true makes this a channel limit, which RabbitMQ lets us change
+		// while the consumer is active
+		if (!paused) {
+			channel.basicQos(count, true);
+		}
+		if (trace.isLoggable(TraceLevel.DEBUG))
+			trace.log(TraceLevel.DEBUG, "Prefetch count changed from " + current + " to " + count); //$NON-NLS-1$ //$NON-NLS-2$
+		current = count;
+		prefetchCountMetric.setValue(count);
+	}
+}
@@ -0,0 +1,203 @@
+package com.ibm.streamsx.rabbitmq;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+import com.ibm.streams.operator.logging.TraceLevel;
+import com.ibm.streams.operator.metrics.Metric;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Hands publishes over from the tuple threads to a dedicated I/O thread, so
+ * that a stalled socket does not stall the operators upstream. The slots of
+ * the ring are allocated once and reused. The ring is single-consumer; the
+ * producer side is serialized with a lock, which is uncontended when there is
+ * only one input thread. The I/O thread takes all publishes that are ready in
+ * one burst.
+ */
+class PublishRing implements Runnable {
+
+	static final String WAIT_SPIN = "spin"; //$NON-NLS-1$
+	static final String WAIT_YIELD = "yield"; //$NON-NLS-1$
+	static final String WAIT_PARK = "park"; //$NON-NLS-1$
+
+	private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	interface Publisher {
+		void publish(String routingKey, BasicProperties props, byte[] message) throws Exception;
+	}
+
+	private static class Slot {
+		String routingKey;
+		BasicProperties props;
+		byte[] message;
+		long enqueueNanos;
+	}
+
+	private final Logger trace = Logger.getLogger(this.getClass().getCanonicalName());
+
+	private final Slot[] slots;
+	private final int mask;
+	// next slot to fill, written by the producer only
+	private final AtomicLong tail = new AtomicLong();
+	// next slot to publish, written by the consumer only
+	private final AtomicLong head = new AtomicLong();
+	private final Object producerLock = new Object();
+
+	private final Publisher publisher;
+	private final String waitStrategy;
+	private final Metric occupancy;
+	private final Metric handoffLatency;
+	private final Metric droppedMessages;
+
+	private volatile Thread consumer = null;
+	private volatile boolean consumerParked = false;
+	private volatile boolean closed = false;
+
+	/**
+	 * @param capacity			The number of slots, rounded up to a power of two.
+	 * @param publisher			Publishes a message on the I/O thread.
+	 * @param waitStrategy		How to wait for slots or publishes: spin, yield or park.
+	 * @param occupancy			Gauge updated with the number of publishes in the ring.
+	 * @param handoffLatency	Gauge updated with the time (in microseconds) the latest publish spent in the ring.
+	 * @param droppedMessages	Counter incremented for each publish that is dropped.
+	 */
+	PublishRing(int capacity, Publisher publisher, String waitStrategy, Metric occupancy, Metric handoffLatency,
+			Metric droppedMessages) {
+		int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+		this.slots = new Slot[size];
+		for (int i = 0; i < size; i++) {
+			slots[i] = new Slot();
+		}
+		this.mask = size - 1;
+		this.publisher = publisher;
+		this.waitStrategy = waitStrategy;
+		this.occupancy = occupancy;
+		this.handoffLatency = handoffLatency;
+		this.droppedMessages = droppedMessages;
+	}
+
+	void start(ThreadFactory threadFactory) {
+		Thread thread = threadFactory.newThread(this);
+		thread.setDaemon(true);
+		consumer = thread;
+		thread.start();
+	}
+
+	/**
+	 * Hands a publish over to the I/O thread. Waits while the ring is full.
+	 * The publish is dropped once the ring has been closed.
+	 */
+	void put(String routingKey, BasicProperties props, byte[] message) throws InterruptedException {
+		synchronized (producerLock) {
+			long position = tail.get();
+			while (closed || position - head.get() >= slots.length) {
+				if (closed) {
+					droppedMessages.increment();
+					return;
+				}
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+				idle(PARK_NANOS);
+			}
+			Slot slot = slots[(int) position & mask];
+			slot.routingKey = routingKey;
+			slot.props = props;
+			slot.message = message;
+			slot.enqueueNanos = System.nanoTime();
+			tail.lazySet(position + 1);
+		}
+		if (consumerParked) {
+			LockSupport.unpark(consumer);
+		}
+	}
+
+	/**
+	 * Blocks until the I/O thread has taken all publishes from the ring.
+	 * @param timeoutMillis	The maximum time to wait.
+	 * @return false if there are still publishes in the ring after the timeout.
+	 */
+	boolean awaitEmpty(long timeoutMillis) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		while (head.get() < tail.get() && !closed) {
+			if (System.nanoTime() - deadline >= 0) {
+				return false;
+			}
+			Thread.sleep(1);
+		}
+		return true;
+	}
+
+	/**
+	 * Stops the I/O thread. Publishes still in the ring are dropped.
+	 */
+	void close() {
+		closed = true;
+		Thread thread = consumer;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+		// a producer that has not seen the flag finishes its put first
+		long left;
+		synchronized (producerLock) {
+			left = tail.get() - head.get();
+		}
+		if (left > 0) {
+			trace.log(TraceLevel.ERROR, "Dropping " + left + " message(s) waiting to be published."); //$NON-NLS-1$ //$NON-NLS-2$
+			droppedMessages.incrementValue(left);
+		}
+	}
+
+	@Override
+	public void run() {
+		long position = head.get();
+		while (!closed) {
+			long available = tail.get();
+			if (position == available) {
+				consumerParked = true;
+				// check again, the producer may not have seen the flag
+				if (tail.get() == position && !closed) {
+					idle(IDLE_PARK_NANOS);
+				}
+				consumerParked = false;
+				continue;
+			}
+
+			long now = System.nanoTime();
+			handoffLatency.setValue(TimeUnit.NANOSECONDS.toMicros(now - slots[(int) position & mask].enqueueNanos));
+			occupancy.setValue(available - position);
+			for (; position < available && !closed; position++) {
+				Slot slot = slots[(int) position & mask];
+				try {
+					publisher.publish(slot.routingKey, slot.props, slot.message);
+				} catch (InterruptedException e) {
+					// operator is shutting down
+					return;
+				} catch (Exception e) {
+					trace.log(TraceLevel.ERROR, "Exception message:" + e.getMessage()); //$NON-NLS-1$
+					droppedMessages.increment();
+				}
+				slot.routingKey = null;
+				slot.props = null;
+				slot.message = null;
+				head.lazySet(position + 1);
+			}
+			occupancy.setValue(tail.get() - position);
+		}
+	}
+
+	private void idle(long parkNanos) {
+		if (WAIT_SPIN.equals(waitStrategy)) {
+			// busy wait
+		} else if (WAIT_YIELD.equals(waitStrategy)) {
+			Thread.yield();
+		} else {
+			LockSupport.parkNanos(this, parkNanos);
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package com.ibm.streamsx.rabbitmq;
+
+import java.io.IOException;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+
+/**
+ * A channel the sink publishes on, together with the tracking of its
+ * publisher confirms. AMQP channels must not be used by several threads at
+ * once, so all publishes on a PublisherChannel are serialized.
+ */
+class PublisherChannel {
+
+	private final Channel channel;
+	private final PublisherConfirmTracker confirmTracker;
+
+	/**
+	 * @param channel			The channel to publish on.
+	 * @param confirmTracker	The tracker registered as confirm listener of the channel,
+	 * 							or null if the channel is not in confirm mode.
+	 */
+	PublisherChannel(Channel channel, PublisherConfirmTracker confirmTracker) {
+		this.channel = channel;
+		this.confirmTracker = confirmTracker;
+	}
+
+	Channel getChannel() {
+		return channel;
+	}
+
+	PublisherConfirmTracker getConfirmTracker() {
+		return confirmTracker;
+	}
+
+	/*
+	 * In confirm mode, the delivery tag has to be taken and tracked atomically
+	 * with the publish, and we wait here only if the confirm window is full.
+	 */
+	synchronized void publish(String exchangeName, String routingKey, BasicProperties props, byte[] message)
+			throws IOException, InterruptedException {
+		if (confirmTracker == null) {
+			channel.basicPublish(exchangeName, routingKey, props, message);
+			return;
+		}
+
+		confirmTracker.awaitCapacity();
+		long deliveryTag = channel.getNextPublishSeqNo();
+		confirmTracker.track(deliveryTag);
+		try {
+			channel.basicPublish(exchangeName, routingKey, props, message);
+		} catch (IOException | RuntimeException e) {
+			confirmTracker.untrack(deliveryTag);
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package com.ibm.streamsx.rabbitmq;
+
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.ibm.streams.operator.logging.TraceLevel;
+import com.ibm.streams.operator.metrics.Metric;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Keeps track of the publishes on a channel in confirm mode that have not been
+ * confirmed by the broker yet. Outstanding publishes are kept sorted by their
+ * delivery tag, so that an ack or nack with multiple=true releases the whole
+ * head of the window at once.
+ */
+public class PublisherConfirmTracker implements ConfirmListener, ShutdownListener {
+
+	private final Logger trace = Logger.getLogger(this.getClass().getCanonicalName());
+
+	// delivery tag -> System.nanoTime() of the publish
+	private final NavigableMap<Long, Long> inFlight = new TreeMap<Long, Long>();
+	private final int windowSize;
+	// publishes the broker rejected or that can no longer be confirmed
+	private int lost = 0;
+
+	private final Metric outstandingConfirms;
+	private final Metric confirmLatency;
+	private final Metric nackedMessages;
+
+	/**
+	 * @param windowSize			The maximum number of unconfirmed publishes.
+	 * @param outstandingConfirms	Gauge updated with the number of unconfirmed publishes. It may be shared
+	 *								by the trackers of several channels.
+	 * @param confirmLatency		Updated with the latency (in ms) of the latest confirm.
+	 * @param nackedMessages		Counter incremented for each publish the broker nacked.
+	 */
+	public PublisherConfirmTracker(int windowSize, Metric outstandingConfirms, Metric confirmLatency,
+			Metric nackedMessages) {
+		this.windowSize = windowSize;
+		this.outstandingConfirms = outstandingConfirms;
+		this.confirmLatency = confirmLatency;
+		this.nackedMessages = nackedMessages;
+	}
+
+	/**
+	 * Blocks until there is room in the window for one more publish.
+	 */
+	public synchronized void awaitCapacity() throws InterruptedException {
+		while (inFlight.size() >= windowSize) {
+			wait();
+		}
+	}
+
+	public synchronized void track(long deliveryTag) {
+		inFlight.put(deliveryTag, System.nanoTime());
+		outstandingConfirms.increment();
+	}
+
+	/**
+	 * Stops tracking a publish that never made it to the broker.
+	 */
+	public synchronized void untrack(long deliveryTag) {
+		if (inFlight.remove(deliveryTag) != null) {
+			outstandingConfirms.incrementValue(-1);
+		}
+		notifyAll();
+	}
+
+	public synchronized int getOutstanding() {
+		return inFlight.size();
+	}
+
+	/**
+	 * Blocks until all outstanding publishes have been confirmed.
+	 * @param timeoutMillis	The maximum time to wait.
+	 * @return false if there are still unconfirmed publishes after the timeout.
+	 */
+	public synchronized boolean awaitAllConfirmed(long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (!inFlight.isEmpty()) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return false;
+			}
+			wait(remaining);
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of publishes that were nacked or abandoned since the last call.
+	 */
+	public synchronized int takeLost() {
+		int result = lost;
+		lost = 0;
+		return result;
+	}
+
+	/**
+	 * Forgets all outstanding publishes, for example when a consistent region is reset.
+	 */
+	public synchronized void clear() {
+		outstandingConfirms.incrementValue(-inFlight.size());
+		inFlight.clear();
+		lost = 0;
+		notifyAll();
+	}
+
+	@Override
+	public void handleAck(long deliveryTag, boolean multiple) {
+		release(deliveryTag, multiple);
+	}
+
+	@Override
+	public void handleNack(long deliveryTag, boolean multiple) {
+		int nacked = release(deliveryTag, multiple);
+		synchronized (this) {
+			lost += nacked;
+		}
+		nackedMessages.incrementValue(nacked);
+		trace.log(TraceLevel.ERROR, "Broker rejected " + nacked + " message(s) up to delivery tag: " + deliveryTag); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	/*
+	 * Once the channel is gone, the outstanding delivery tags will never be
+	 * confirmed. A recovered channel starts over with new tags.
+	 */
+	@Override
+	public synchronized void shutdownCompleted(ShutdownSignalException cause) {
+		if (!inFlight.isEmpty()) {
+			trace.log(TraceLevel.WARN, "Channel closed with " + inFlight.size() //$NON-NLS-1$
+					+ " unconfirmed message(s). Their delivery cannot be verified."); //$NON-NLS-1$
+			outstandingConfirms.incrementValue(-inFlight.size());
+			lost += inFlight.size();
+			inFlight.clear();
+		}
+		notifyAll();
+	}
+
+	private synchronized int release(long deliveryTag, boolean multiple) {
+		Long published = inFlight.get(deliveryTag);
+		if (published != null) {
+			confirmLatency.setValue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - published));
+		}
+
+		int released;
+		if (multiple) {
+			NavigableMap<Long, Long> confirmed = inFlight.headMap(deliveryTag, true);
+			released = confirmed.size();
+			confirmed.clear();
+		} else {
+			released = published != null ? 1 : 0;
+			inFlight.remove(deliveryTag);
+		}
+
+		outstandingConfirms.incrementValue(-released);
+		notifyAll();
+		return released;
+	}
+}
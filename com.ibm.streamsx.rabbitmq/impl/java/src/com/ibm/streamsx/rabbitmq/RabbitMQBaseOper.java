@@ -5,7 +5,6 @@
 
 package com.ibm.streamsx.rabbitmq;
 
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
@@ -14,16 +13,21 @@ import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManagerFactory;
 
 import com.ibm.streams.operator.AbstractOperator;
 import com.ibm.streams.operator.OperatorContext;
@@ -42,7 +46,11 @@ import com.rabbitmq.client.Address;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.ExceptionHandler;
 import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import com.rabbitmq.client.impl.nio.NioParams;
 
 @Libraries({ "opt/downloaded/*"/*, "@RABBITMQ_HOME@" */})
 public class RabbitMQBaseOper extends AbstractOperator {
@@ -68,6 +76,7 @@ public class RabbitMQBaseOper extends AbstractOperator {
 	
 	protected Channel		channel			= null;
 	protected Connection	connection		= null;
+	protected List<Connection> additionalConnections = new ArrayList<Connection>();
 	protected String 		username		= "",			//$NON-NLS-1$
 							password		= "",			//$NON-NLS-1$
 							exchangeName 	= "",
@@ -93,6 +102,49 @@ public class RabbitMQBaseOper extends AbstractOperator {
 	private		long   isConnectedValueOld = 0;				// by default we are not connected	
 	private		Metric reconnectionAttempts;
 	private		Metric reconnectionAttemptsLatestBatch;
+	private		Metric reconnectTime;
+	private		Metric maxReconnectTime;
+	// upper bounds (in ms) of the reconnect time histogram, the last bucket has no bound
+	private static final long[] RECONNECT_TIME_BUCKETS = { 1000, 10000, 60000 };
+	private		Metric[] reconnectTimeBuckets;
+	private		long   disconnectedSince = 0;
+	
+	private		String reconnectionBackoff = ReconnectPolicy.BACKOFF_FIXED;
+	private		long   maxNetworkRecoveryInterval = 60000;
+	private		String addressOrder = ReconnectPolicy.ORDER_CONFIGURED;
+	private		ReconnectPolicy reconnectPolicy = null;
+	
+	private		boolean useNio = false;
+	private		int    nioThreads = 1;
+	private		int    nioReadBufferSize = 32768;
+	private		int    nioWriteBufferSize = 32768;
+	private		int    nioWriteQueueCapacity = 10000;
+	private		int    consumerThreads = 0;
+	// the pools of the PE this operator holds a reference to
+	private		ExecutorService nioExecutor = null;
+	private		ExecutorService consumerExecutor = null;
+	private		Metric isBlocked;
+	private		Metric blockedDuration;
+	private static final int BLOCKED_CLOSE_TIMEOUT = 1000;
+	private static final int CONNECT_JOIN_TIMEOUT = 1000;
+	private volatile CompletableFuture<Void> connectFuture = null;
+	private volatile Thread connectThread = null;
+	
+	protected static final String CONSISTENT_HASH_EXCHANGE = "x-consistent-hash"; //$NON-NLS-1$
+	// the weight of a queue bound to a consistent-hash exchange
+	protected static final String CONSISTENT_HASH_WEIGHT = "1"; //$NON-NLS-1$
+	private final Set<Connection> blockedConnections = new HashSet<Connection>();
+	private		long   blockedSince = 0;
+	private		long   blockedMillis = 0;
+	private		boolean shareConnection = false;
+	// the connection is shared with other operators of the PE
+	private		boolean connectionShared = false;
+	private		RabbitMQConnectionExceptionHandler sharedExceptionHandler = null;
+	private		AutoRecoveryListener sharedRecoveryListener = null;
+	private		ConnectionBlockedListener sharedBlockedListener = null;
+	private		ShutdownListener sharedShutdownListener = null;
+	// channels of this operator, which must be closed when the connection is shared
+	private final List<Channel> operatorChannels = new ArrayList<Channel>();
 	private		String appConfigName = "";					//$NON-NLS-1$
 	private		String userPropName;
 	private		String passwordPropName;
@@ -211,6 +263,15 @@ public class RabbitMQBaseOper extends AbstractOperator {
 	 */
 	@ContextCheck(compile = false)
 	public static void checkParametersRuntime(OperatorContextChecker checker) {		
+		checkParameterValue(checker, "reconnectionBackoff", ReconnectPolicy.BACKOFF_FIXED, ReconnectPolicy.BACKOFF_EXPONENTIAL); //$NON-NLS-1$
+		checkParameterValue(checker, "addressOrder", ReconnectPolicy.ORDER_CONFIGURED, ReconnectPolicy.ORDER_SHUFFLE, //$NON-NLS-1$
+				ReconnectPolicy.ORDER_LEAST_RECENTLY_FAILED);
+		checkPositiveParameter(checker, "maxNetworkRecoveryInterval"); //$NON-NLS-1$
+		checkPositiveParameter(checker, "nioThreads"); //$NON-NLS-1$
+		checkPositiveParameter(checker, "nioReadBufferSize"); //$NON-NLS-1$
+		checkPositiveParameter(checker, "nioWriteBufferSize"); //$NON-NLS-1$
+		checkPositiveParameter(checker, "nioWriteQueueCapacity"); //$NON-NLS-1$
+		checkPositiveParameter(checker, "consumerThreads"); //$NON-NLS-1$
 		if((checker.getOperatorContext().getParameterNames().contains("appConfigName"))) { //$NON-NLS-1$
         	String appConfigName = checker.getOperatorContext().getParameterValues("appConfigName").get(0); //$NON-NLS-1$
 			String userPropName = checker.getOperatorContext().getParameterValues("userPropName").get(0); //$NON-NLS-1$
@@ -240,6 +301,49 @@ public class RabbitMQBaseOper extends AbstractOperator {
         }
 	}
 	
+	/*
+	 * The routing key of a shard: the shard index is appended to the routing key, 
+	 * or is the routing key if it is empty.
+	 */
+	protected static String getShardRoutingKey(String routingKey, int shard) {
+		return routingKey.isEmpty() ? String.valueOf(shard) : routingKey + "." + shard; //$NON-NLS-1$
+	}
+	
+	/*
+	 * Validates that a numeric parameter, if it is specified, is greater than zero.
+	 */
+	protected static void checkPositiveParameter(OperatorContextChecker checker, String paramName) {
+		OperatorContext context = checker.getOperatorContext();
+		if (context.getParameterNames().contains(paramName)) {
+			String value = context.getParameterValues(paramName).get(0);
+			try {
+				if (Double.parseDouble(value) > 0) {
+					return;
+				}
+			} catch (NumberFormatException e) {
+				// reported below
+			}
+			checker.setInvalidContext(Messages.getString("PARAM_VALUE_MUST_BE_POSITIVE", paramName), new Object[0]); //$NON-NLS-1$
+		}
+	}
+	
+	/*
+	 * Validates that a string parameter, if it is specified, has one of the supported values.
+	 */
+	protected static void checkParameterValue(OperatorContextChecker checker, String paramName, String... validValues) {
+		OperatorContext context = checker.getOperatorContext();
+		if (context.getParameterNames().contains(paramName)) {
+			String value = context.getParameterValues(paramName).get(0);
+			// string literals are passed on with their quotes
+			if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) { //$NON-NLS-1$ //$NON-NLS-2$
+				value = value.substring(1, value.length() - 1);
+			}
+			if (!Arrays.asList(validValues).contains(value)) {
+				checker.setInvalidContext(Messages.getString("PARAM_VALUE_NOT_SUPPORTED", paramName, value, Arrays.toString(validValues)), new Object[0]); //$NON-NLS-1$
+			}
+		}
+	}
+	
 	// add check for appConfig userPropName and passwordPropName
 	@ContextCheck(compile = true)
 	public static void checkParameters(OperatorContextChecker checker) {	
@@ -254,6 +358,17 @@ public class RabbitMQBaseOper extends AbstractOperator {
 	public synchronized void initialize(OperatorContext context) throws Exception {
 		// Must call super.initialize(context) to correctly setup an operator.
 		super.initialize(context);
+		
+		reconnectPolicy = newReconnectPolicy();
+		reconnectTimeBuckets = new Metric[RECONNECT_TIME_BUCKETS.length + 1];
+		for (int i = 0; i < RECONNECT_TIME_BUCKETS.length; i++) {
+			long seconds = RECONNECT_TIME_BUCKETS[i] / 1000;
+			reconnectTimeBuckets[i] = context.getMetrics().createCustomMetric("reconnectsWithin" + seconds + "s", //$NON-NLS-1$ //$NON-NLS-2$
+					"The number of reconnects that took up to " + seconds + " seconds.", Metric.Kind.COUNTER); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		long longest = RECONNECT_TIME_BUCKETS[RECONNECT_TIME_BUCKETS.length - 1] / 1000;
+		reconnectTimeBuckets[RECONNECT_TIME_BUCKETS.length] = context.getMetrics().createCustomMetric("reconnectsOver" + longest + "s", //$NON-NLS-1$ //$NON-NLS-2$
+				"The number of reconnects that took more than " + longest + " seconds.", Metric.Kind.COUNTER); //$NON-NLS-1$ //$NON-NLS-2$
 	}
 	
 	
@@ -296,17 +411,22 @@ public class RabbitMQBaseOper extends AbstractOperator {
 
 	/*
 	 * Setup connection and channel. If automatic recovery is enabled, we will reattempt 
-	 * to connect every networkRecoveryInterval
+	 * to connect after the delay of the reconnection policy
 	 */
 	public void initializeRabbitChannelAndConnection() throws MalformedURLException, URISyntaxException, NoSuchAlgorithmException,
 			KeyManagementException, IOException, TimeoutException, InterruptedException, OperatorShutdownException, FailedToConnectToRabbitMQException, Exception {
+		int attempt = 0;
 		do {	
 			try {
 				ConnectionFactory connectionFactory = setupConnectionFactory();
 				
 				// If we return from this without throwing an exception,
 				// then we have successfully connected
-				connection = setupNewConnection(connectionFactory, URI, addressArr);
+				if (shareConnection) {
+					connection = acquireSharedConnection(connectionFactory);
+				} else {
+					connection = setupNewConnection(connectionFactory, URI, addressArr);
+				}
 				channel = initializeExchange();
 				setIsConnectedValue(1);
 				
@@ -319,8 +439,12 @@ public class RabbitMQBaseOper extends AbstractOperator {
 			catch (IOException | TimeoutException e) {
 				e.printStackTrace();
 				trace.log(LogLevel.ERROR, Messages.getString("FAILED_TO_SETUP_CONNECTION", e.getMessage())); //$NON-NLS-1$
+				if (connection != null) {
+					// the connection is up but its channel failed, don't leak it on the next attempt
+					closeRabbitConnections();
+				}
 				if (autoRecovery == true){
-					Thread.sleep(networkRecoveryInterval);
+					awaitShutdown(reconnectPolicy.getDelay(attempt++));
 				}
 			}
 		} while ( autoRecovery == true && (connection == null || channel == null) && !shuttingDown.get());
@@ -331,13 +455,262 @@ public class RabbitMQBaseOper extends AbstractOperator {
 		}
 	}
 
+	/*
+	 * Connects in the background, so that the first tuples do not wait for
+	 * name resolution, the TCP and TLS handshakes and the exchange declaration.
+	 */
+	protected void startConnecting() {
+		final CompletableFuture<Void> future = new CompletableFuture<Void>();
+		connectFuture = future;
+		connectThread = getOperatorContext().getThreadFactory().newThread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					initializeRabbitChannelAndConnection();
+					future.complete(null);
+				} catch (Throwable e) {
+					trace.log(TraceLevel.ERROR, "Failed to connect: " + e.getMessage()); //$NON-NLS-1$
+					future.completeExceptionally(e);
+				}
+			}
+		});
+		connectThread.setDaemon(true);
+		connectThread.start();
+	}
+	
+	/**
+	 * Waits for the connection set up by {@link #startConnecting()}.
+	 * @param timeoutMillis	The maximum time to wait.
+	 * @return false if the connection is not ready within the timeout.
+	 * @throws Exception if the connection could not be set up.
+	 */
+	protected boolean awaitConnection(long timeoutMillis) throws Exception {
+		try {
+			connectFuture.get(timeoutMillis, TimeUnit.MILLISECONDS);
+			return true;
+		} catch (TimeoutException e) {
+			return false;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			throw cause instanceof Exception ? (Exception) cause : new ExecutionException(cause);
+		}
+	}
+	
+	/*
+	 * Waits before the next connection attempt. Returns early if the operator
+	 * shuts down.
+	 */
+	private void awaitShutdown(long millis) throws InterruptedException {
+		synchronized (shuttingDown) {
+			if (!shuttingDown.get()) {
+				shuttingDown.wait(millis);
+			}
+		}
+	}
+
+	/*
+	 * Opens one more connection with the settings of the main connection. 
+	 * It is closed together with the main connection.
+	 */
+	protected Connection openAdditionalConnection() throws Exception {
+		Connection additionalConnection = setupNewConnection(setupConnectionFactory(), URI, addressArr);
+		additionalConnections.add(additionalConnection);
+		return additionalConnection;
+	}
+
+	private ReconnectPolicy newReconnectPolicy() {
+		return new ReconnectPolicy(reconnectionBackoff, networkRecoveryInterval, maxNetworkRecoveryInterval, addressOrder);
+	}
+
+	/*
+	 * Gets the connection of the PE that other operators with the same 
+	 * connection settings use. The connection gets an exception handler and
+	 * a reconnection policy of its own, which outlive the operator that opens
+	 * it. The exception handler and the listeners that tell this operator 
+	 * about recovery, blocking and connection loss are removed again on release.
+	 */
+	private Connection acquireSharedConnection(final ConnectionFactory connectionFactory) throws IOException, TimeoutException {
+		sharedExceptionHandler = new RabbitMQConnectionExceptionHandler(this);
+		Connection shared = SharedConnections.acquire(getConnectionKey(connectionFactory), sharedExceptionHandler,
+				newReconnectPolicy(), new SharedConnections.Opener() {
+			@Override
+			public Connection open(ExceptionHandler exceptionHandler, ReconnectPolicy policy) throws IOException, TimeoutException {
+				connectionFactory.setExceptionHandler(exceptionHandler);
+				if (autoRecovery) {
+					connectionFactory.setRecoveryDelayHandler(policy);
+				}
+				return getConnection(connectionFactory, URI, addressArr, policy);
+			}
+		});
+		connectionShared = true;
+		// learns which addresses fail, together with the other operators
+		reconnectPolicy = SharedConnections.getReconnectPolicy(shared);
+		if (shared instanceof Recoverable) {
+			sharedRecoveryListener = new AutoRecoveryListener(this);
+			((Recoverable) shared).addRecoveryListener(sharedRecoveryListener);
+		}
+		sharedBlockedListener = new ConnectionBlockedListener(this, shared);
+		shared.addBlockedListener(sharedBlockedListener);
+		// not every connection loss goes through the exception handler
+		sharedShutdownListener = new ShutdownListener() {
+			@Override
+			public void shutdownCompleted(ShutdownSignalException cause) {
+				if (!cause.isInitiatedByApplication()) {
+					setIsConnectedValue(0);
+				}
+			}
+		};
+		shared.addShutdownListener(sharedShutdownListener);
+		return shared;
+	}
+	
+	private void releaseSharedConnection(boolean blocked) throws IOException {
+		if (sharedRecoveryListener != null) {
+			((Recoverable) connection).removeRecoveryListener(sharedRecoveryListener);
+			sharedRecoveryListener = null;
+		}
+		connection.removeBlockedListener(sharedBlockedListener);
+		connection.removeShutdownListener(sharedShutdownListener);
+		connectionShared = false;
+		boolean last = SharedConnections.release(connection, sharedExceptionHandler);
+		sharedExceptionHandler = null;
+		if (last) {
+			closeConnection(connection, blocked);
+		}
+	}
+	
+	/*
+	 * Operators share a connection only if they would open the same connection.
+	 * The key contains the credentials, so it must not be logged.
+	 */
+	private String getConnectionKey(ConnectionFactory connectionFactory) {
+		return Arrays.asList(URI, Arrays.toString(addressArr), connectionFactory.getVirtualHost(),
+				connectionFactory.getUsername(), connectionFactory.getPassword(), useSSL, sslProtocol, 
+				keyStorePath, keyStoreType, keyStoreAlgorithm, keyStorePassword,
+				trustStorePath, trustStoreType, trustStoreAlgorithm, trustStorePassword,
+				autoRecovery, networkRecoveryInterval, reconnectionBackoff, maxNetworkRecoveryInterval, addressOrder,
+				useNio, nioThreads, nioReadBufferSize, nioWriteBufferSize, nioWriteQueueCapacity, consumerThreads).toString();
+	}
+	
+	/*
+	 * NIO connections share a frame handler factory only if they use the same
+	 * NIO and SSL settings. The key contains passwords, so it must not be logged.
+	 */
+	private String getNioKey() {
+		return Arrays.asList(nioThreads, nioReadBufferSize, nioWriteBufferSize, nioWriteQueueCapacity,
+				useSSL, sslProtocol, keyStorePath, keyStoreType, keyStoreAlgorithm, keyStorePassword,
+				trustStorePath, trustStoreType, trustStoreAlgorithm, trustStorePassword).toString();
+	}
+	
+	/*
+	 * Creates a channel that is closed with the operator's connections, even 
+	 * if the connection is shared.
+	 */
+	protected Channel createChannel(Connection channelConnection) throws IOException {
+		Channel created = channelConnection.createChannel();
+		synchronized (operatorChannels) {
+			Iterator<Channel> it = operatorChannels.iterator();
+			while (it.hasNext()) {
+				if (!it.next().isOpen()) {
+					it.remove();
+				}
+			}
+			operatorChannels.add(created);
+		}
+		return created;
+	}
+
+	/*
+	 * Called by the AutoRecoveryListener once a connection has been recovered.
+	 */
+	public void connectionRecovered() {
+	}
+
+	/**
+	 * Records that the broker has blocked or unblocked a connection. The 
+	 * operator counts as blocked while any of its connections is blocked.
+	 */
+	public void setConnectionBlocked(Connection blockedConnection, boolean blocked) {
+		synchronized (blockedConnections) {
+			boolean wasBlocked = !blockedConnections.isEmpty();
+			if (blocked) {
+				blockedConnections.add(blockedConnection);
+			} else {
+				blockedConnections.remove(blockedConnection);
+			}
+			boolean nowBlocked = !blockedConnections.isEmpty();
+			if (!wasBlocked && nowBlocked) {
+				blockedSince = System.currentTimeMillis();
+				isBlocked.setValue(1);
+			} else if (wasBlocked && !nowBlocked) {
+				blockedMillis += System.currentTimeMillis() - blockedSince;
+				blockedDuration.setValue(blockedMillis);
+				isBlocked.setValue(0);
+			}
+			blockedConnections.notifyAll();
+			if (wasBlocked && !nowBlocked) {
+				connectionUnblocked();
+			}
+		}
+	}
+	
+	protected boolean isBlocked() {
+		return isBlocked.getValue() != 0;
+	}
+	
+	/**
+	 * Waits until no connection is blocked or the operator shuts down.
+	 */
+	protected void awaitUnblocked() throws InterruptedException {
+		synchronized (blockedConnections) {
+			while (!blockedConnections.isEmpty() && !shuttingDown.get()) {
+				blockedConnections.wait(1000);
+			}
+		}
+	}
+	
+	/**
+	 * Called when the last blocked connection has been unblocked. Must not 
+	 * block, it runs on the connection's thread.
+	 */
+	protected void connectionUnblocked() {
+	}
+	
+	protected int getConsumerThreads() {
+		return consumerThreads;
+	}
+	
+	protected long getNetworkRecoveryInterval() {
+		return networkRecoveryInterval;
+	}
+
 	private ConnectionFactory setupConnectionFactory() throws Exception {
-		ConnectionFactory connectionFactory = new ConnectionFactory();
+		ConnectionFactory connectionFactory;
+		if (useNio) {
+			// the NIO loops of all operators of the PE run on one thread pool,
+			// and connections with the same NIO settings share their loops
+			if (nioExecutor == null) {
+				nioExecutor = SharedTransport.acquireNioExecutor();
+			}
+			connectionFactory = new SharedTransport.NioConnectionFactory(getNioKey());
+			connectionFactory.setNioParams(new NioParams().setNbIoThreads(nioThreads).setReadByteBufferSize(nioReadBufferSize)
+					.setWriteByteBufferSize(nioWriteBufferSize).setWriteQueueCapacity(nioWriteQueueCapacity)
+					.setNioExecutor(nioExecutor));
+		} else {
+			connectionFactory = new ConnectionFactory();
+		}
+		if (consumerThreads > 0) {
+			if (consumerExecutor == null) {
+				consumerExecutor = SharedTransport.acquireConsumerExecutor(consumerThreads);
+			}
+			connectionFactory.setSharedExecutor(consumerExecutor);
+		}
 		connectionFactory.setExceptionHandler(new RabbitMQConnectionExceptionHandler(this));
 		connectionFactory.setAutomaticRecoveryEnabled(autoRecovery);
 				
 		if (autoRecovery) {
 			connectionFactory.setNetworkRecoveryInterval(networkRecoveryInterval);
+			connectionFactory.setRecoveryDelayHandler(reconnectPolicy);
 		}
 		
 		if(useSSL) {
@@ -363,24 +736,9 @@ public class RabbitMQBaseOper extends AbstractOperator {
 	}
 
 	private SSLContext createSSLContext() throws Exception {
-		char[] keyStorePasswordCharArray = keyStorePassword.toCharArray();
-		KeyStore ks = KeyStore.getInstance(keyStoreType);
-		ks.load(new FileInputStream(keyStorePath), keyStorePasswordCharArray);
-		
-		KeyManagerFactory kmf = KeyManagerFactory.getInstance(keyStoreAlgorithm);
-		kmf.init(ks, keyStorePasswordCharArray);
-		
-		char[] trustStorePasswordCharArray = trustStorePassword != null ? trustStorePassword.toCharArray() : null;
-		KeyStore tks = KeyStore.getInstance(trustStoreType);
-		tks.load(new FileInputStream(trustStorePath), trustStorePasswordCharArray);
-		
-		TrustManagerFactory tmf = TrustManagerFactory.getInstance(trustStoreAlgorithm);
-		tmf.init(tks);
-		
-		SSLContext c = SSLContext.getInstance(sslProtocol);
-		c.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
-		
-		return c;
+		// shared with the other operators of the PE and reused across reconnects
+		return SSLContextCache.get(sslProtocol, keyStoreType, keyStoreAlgorithm, keyStorePath, keyStorePassword,
+				trustStoreType, trustStoreAlgorithm, trustStorePath, trustStorePassword);
 	}
 
 	/*
@@ -389,19 +747,23 @@ public class RabbitMQBaseOper extends AbstractOperator {
 	private Connection setupNewConnection(ConnectionFactory connectionFactory, String URI, Address[] addressArr)
 			throws IOException, TimeoutException, InterruptedException, OperatorShutdownException {
 		Connection connection = null;
-		connection = getConnection(connectionFactory, URI, addressArr);
+		connection = getConnection(connectionFactory, URI, addressArr, reconnectPolicy);
 		if (connectionFactory.isAutomaticRecoveryEnabled()) {
 			((Recoverable) connection).addRecoveryListener(new AutoRecoveryListener(this));
 		}
+		// the broker blocks publishing connections during a memory or disk alarm
+		connection.addBlockedListener(new ConnectionBlockedListener(this, connection));
 
 		return connection;
 	}
 
-	private Connection getConnection(ConnectionFactory connectionFactory, String URI, Address[] addressArr)
-			throws IOException, TimeoutException {
+	private Connection getConnection(ConnectionFactory connectionFactory, String URI, Address[] addressArr,
+			ReconnectPolicy policy) throws IOException, TimeoutException {
 		Connection connection;
 		if (URI.isEmpty()){
-			connection = connectionFactory.newConnection(addressArr);
+			// the policy orders the addresses for every attempt, including recovery
+			policy.setAddresses(addressArr);
+			connection = connectionFactory.newConnection(policy);
 			trace.log(TraceLevel.INFO, "Creating a new connection based on an address list."); //$NON-NLS-1$
 		} else {
 			connection = connectionFactory.newConnection();
@@ -449,7 +811,7 @@ public class RabbitMQBaseOper extends AbstractOperator {
 	}
 
 	private Channel initializeExchange() throws IOException {
-		Channel channel = connection.createChannel();
+		Channel channel = createChannel(connection);
 		try{
 			//check to see if the exchange exists if not then it is the default exchange
 			if ( !exchangeName.isEmpty()){
@@ -462,7 +824,7 @@ public class RabbitMQBaseOper extends AbstractOperator {
 		} catch (IOException e){
 			// if exchange doesn't exist, we will create it
 			// we must also create a new channel since last one erred
-			channel = connection.createChannel();
+			channel = createChannel(connection);
 			// declare non-durable, auto-delete exchange
 			channel.exchangeDeclare(exchangeName, exchangeType, false, true, null);
 			trace.log(TraceLevel.INFO, "Exchange was not found, therefore non-durable exchange will be declared."); //$NON-NLS-1$
@@ -484,8 +846,18 @@ public class RabbitMQBaseOper extends AbstractOperator {
 	}
 
 	public void shutdown() throws Exception {
-		shuttingDown.set(true);
+		synchronized (shuttingDown) {
+			shuttingDown.set(true);
+			shuttingDown.notifyAll();
+		}
+		Thread connector = connectThread;
+		if (connector != null) {
+			// don't let a connection attempt in progress race with the close
+			connector.interrupt();
+			connector.join(CONNECT_JOIN_TIMEOUT);
+		}
 		closeRabbitConnections();
+		releaseSharedPools();
 		// Need this to make sure that we return from the process method
 		// before exiting shutdown
 		while(!readyForShutdown){
@@ -495,10 +867,32 @@ public class RabbitMQBaseOper extends AbstractOperator {
 	}
 
 
+	/*
+	 * The connections of this operator have been closed, and any shared 
+	 * connection it used is held by operators that hold the pools as well.
+	 */
+	private synchronized void releaseSharedPools() {
+		if (nioExecutor != null) {
+			SharedTransport.releaseNioExecutor();
+			nioExecutor = null;
+		}
+		if (consumerExecutor != null) {
+			SharedTransport.releaseConsumerExecutor();
+			consumerExecutor = null;
+		}
+	}
+
 	private void closeRabbitConnections() {
+		// a blocked broker does not read from the socket, so don't wait for it
+		boolean blocked = isBlocked();
+		
 		if (channel != null) {
 			try {
-				channel.close();
+				if (blocked) {
+					channel.abort();
+				} else {
+					channel.close();
+				}
 			} catch (Exception e){
 				e.printStackTrace();
 				trace.log(LogLevel.ALL, Messages.getString("EXCEPTION_AT_CHANNEL_CLOSE", e.toString())); //$NON-NLS-1$
@@ -506,10 +900,33 @@ public class RabbitMQBaseOper extends AbstractOperator {
 				channel = null;
 			}
 		}
+		
+		for (Connection additionalConnection : additionalConnections) {
+			try {
+				closeConnection(additionalConnection, blocked);
+			} catch (Exception e) {
+				e.printStackTrace();
+				trace.log(LogLevel.ALL, Messages.getString("EXCEPTION_AT_CONNECTION_CLOSE", e.toString())); //$NON-NLS-1$
+			}
+		}
+		additionalConnections.clear();
+				
+		synchronized (operatorChannels) {
+			if (connectionShared) {
+				for (Channel operatorChannel : operatorChannels) {
+					closeChannel(operatorChannel, blocked);
+				}
+			}
+			operatorChannels.clear();
+		}
 				
 		if (connection != null){
 			try {
-				connection.close();
+				if (connectionShared) {
+					releaseSharedConnection(blocked);
+				} else {
+					closeConnection(connection, blocked);
+				}
 			} catch (Exception e) {
 				e.printStackTrace();
 				trace.log(LogLevel.ALL, Messages.getString("EXCEPTION_AT_CONNECTION_CLOSE", e.toString())); //$NON-NLS-1$
@@ -518,8 +935,39 @@ public class RabbitMQBaseOper extends AbstractOperator {
 				connection = null;
 			}
 		}
+		
+		// a closed connection is never unblocked
+		synchronized (blockedConnections) {
+			for (Connection blockedConnection : new ArrayList<Connection>(blockedConnections)) {
+				setConnectionBlocked(blockedConnection, false);
+			}
+		}
+	}
+	
+	private static void closeChannel(Channel closingChannel, boolean blocked) {
+		if (!closingChannel.isOpen()) {
+			return;
+		}
+		try {
+			if (blocked) {
+				closingChannel.abort();
+			} else {
+				closingChannel.close();
+			}
+		} catch (Exception e) {
+			trace.log(LogLevel.ALL, Messages.getString("EXCEPTION_AT_CHANNEL_CLOSE", e.toString())); //$NON-NLS-1$
+		}
+	}
+	
+	private static void closeConnection(Connection closingConnection, boolean blocked) throws IOException {
+		if (blocked) {
+			closingConnection.abort(BLOCKED_CLOSE_TIMEOUT);
+		} else {
+			closingConnection.close();
+		}
 	}
 
+
 	
 	
 	public void initSchema(StreamSchema ss) throws Exception {
@@ -612,6 +1060,14 @@ public class RabbitMQBaseOper extends AbstractOperator {
 		vHost = value; 
 	}
 	
+	@Parameter(optional = true, description = "If true, the operator shares its connection with the other RabbitMQ operators of the same PE that connect "
+			+ "to the same broker addresses or URI, with the same virtual host, credentials, SSL settings and recovery settings. "
+			+ "Each operator opens its own channels on the shared connection, which is closed when the last operator is done with it. "
+			+ "Additional connections, like those of the publisherConnections parameter of RabbitMQSink, are not shared. The default is false.")
+	public void setShareConnection(boolean value) {
+		shareConnection = value;
+	}
+	
 	@Parameter(optional = true, description = "Have connections to RabbitMQ automatically recovered. Default is true.")
 	public void setAutomaticRecovery(Boolean value) {
 		autoRecovery = value; 
@@ -625,6 +1081,62 @@ public class RabbitMQBaseOper extends AbstractOperator {
 	public void setSetNetworkRecoveryInterval(long value) {
 		networkRecoveryInterval  = value; 
 	}
+	
+	@Parameter(optional = true, description = "If true, connections use the non-blocking NIO transport of the RabbitMQ client. "
+			+ "All NIO connections of the RabbitMQ operators in the PE that use the same NIO and SSL settings share nioThreads I/O threads, "
+			+ "instead of one reading thread per connection, and the I/O threads are taken from one thread pool of the PE. The default is false.")
+	public void setUseNio(boolean value) {
+		useNio = value;
+	}
+	
+	@Parameter(optional = true, description = "If useNio is true, this is the number of I/O threads that the NIO connections with the same NIO settings share. The default is 1.")
+	public void setNioThreads(int value) {
+		nioThreads = value;
+	}
+	
+	@Parameter(optional = true, description = "If useNio is true, this is the size in bytes of the read buffer of each NIO connection. The default is 32768.")
+	public void setNioReadBufferSize(int value) {
+		nioReadBufferSize = value;
+	}
+	
+	@Parameter(optional = true, description = "If useNio is true, this is the size in bytes of the write buffer of each NIO connection. The default is 32768.")
+	public void setNioWriteBufferSize(int value) {
+		nioWriteBufferSize = value;
+	}
+	
+	@Parameter(optional = true, description = "If useNio is true, this is the number of frames that can wait to be written on each NIO connection. The default is 10000.")
+	public void setNioWriteQueueCapacity(int value) {
+		nioWriteQueueCapacity = value;
+	}
+	
+	@Parameter(optional = true, description = "If greater than 0, deliveries to the consumers of all RabbitMQ operators in the PE are dispatched by one shared pool of this many threads, "
+			+ "instead of a pool per connection. The size set by the first operator that connects applies to the whole PE, and a different size set by a later operator is ignored with a warning. "
+			+ "Deliveries must not wait on the shared pool, so in a RabbitMQSource consumerThreads cannot be combined with submitBufferSize, and it is ignored in a consistent region. "
+			+ "The default is 0 (a pool per connection).")
+	public void setConsumerThreads(int value) {
+		consumerThreads = value;
+	}
+	
+	@Parameter(optional = true, description = "How the interval between reconnection attempts develops. With \\\"fixed\\\", every attempt waits networkRecoveryInterval. "
+			+ "With \\\"exponential\\\", the interval starts at networkRecoveryInterval and doubles with every failed attempt up to maxNetworkRecoveryInterval, "
+			+ "and each attempt waits a random time between zero and the interval, so that many operators that lost the same broker do not reconnect at the same time. "
+			+ "Applies to the initial connection and to automatic recovery. The default is \\\"fixed\\\".")
+	public void setReconnectionBackoff(String value) {
+		reconnectionBackoff = value;
+	}
+	
+	@Parameter(optional = true, description = "If reconnectionBackoff is \\\"exponential\\\", this is the maximum interval (in ms) between reconnection attempts. The default is 60000 ms.")
+	public void setMaxNetworkRecoveryInterval(long value) {
+		maxNetworkRecoveryInterval = value;
+	}
+	
+	@Parameter(optional = true, description = "The order in which the addresses of the hostAndPort parameter are tried when connecting. "
+			+ "With \\\"configured\\\", they are tried in the order given. With \\\"shuffle\\\", they are tried in a random order for every attempt. "
+			+ "With \\\"leastRecentlyFailed\\\", addresses that have failed least recently are tried first, in a random order among themselves. "
+			+ "The default is \\\"configured\\\".")
+	public void setAddressOrder(String value) {
+		addressOrder = value;
+	}
 
 	
 	
@@ -651,9 +1163,17 @@ public class RabbitMQBaseOper extends AbstractOperator {
 			if( isConnectedValueOld == 0 ) {
 				reconnectionAttempts.increment();
 				reconnectionAttemptsLatestBatch.increment();
+				if (value == 1) {
+					connectionEstablished();
+				}
 			}
 			else if( isConnectedValueOld == 1 && value == 0) {
 				reconnectionAttemptsLatestBatch.setValue(0);
+				disconnectedSince = System.currentTimeMillis();
+				Connection lost = connection;
+				if (lost != null) {
+					reconnectPolicy.failed(lost.getAddress(), lost.getPort());
+				}
 			}
 			else {
 				// isConnectedValueOld == 1 && value == 1
@@ -665,6 +1185,64 @@ public class RabbitMQBaseOper extends AbstractOperator {
 	
 	
 	
+	@CustomMetric(	name = "isBlocked",
+					kind = Metric.Kind.GAUGE,
+					description = "Describes whether the RabbitMQ server currently blocks our connection because of a resource alarm.")
+	public void setIsBlockedMetric(Metric isBlocked) {
+		this.isBlocked = isBlocked;
+	}
+	
+	
+	
+	@CustomMetric(	name = "blockedDuration",
+					kind = Metric.Kind.TIME,
+					description = "The accumulated time in milliseconds our connection has been blocked by the RabbitMQ server.")
+	public void setBlockedDurationMetric(Metric blockedDuration) {
+		this.blockedDuration = blockedDuration;
+	}
+	
+	
+	
+	/*
+	 * Tell the reconnection policy which address worked, and record how long
+	 * it took to get a lost connection back.
+	 */
+	private void connectionEstablished() {
+		Connection established = connection;
+		if (established != null) {
+			reconnectPolicy.connected(established.getAddress(), established.getPort());
+		}
+		if (disconnectedSince == 0) {
+			return;
+		}
+		long millis = System.currentTimeMillis() - disconnectedSince;
+		disconnectedSince = 0;
+		reconnectTime.setValue(millis);
+		if (millis > maxReconnectTime.getValue()) {
+			maxReconnectTime.setValue(millis);
+		}
+		int bucket = 0;
+		while (bucket < RECONNECT_TIME_BUCKETS.length && millis > RECONNECT_TIME_BUCKETS[bucket]) {
+			bucket++;
+		}
+		reconnectTimeBuckets[bucket].increment();
+	}
+	
+	@CustomMetric(	name = "reconnectTime",
+					kind = Metric.Kind.GAUGE,
+					description = "The time in milliseconds it took to get the latest lost connection back. "
+							+ "The reconnectsWithin<n>s and reconnectsOver60s metrics count the reconnects by the time they took.")
+	public void setReconnectTimeMetric(Metric reconnectTime) {
+		this.reconnectTime = reconnectTime;
+	}
+	
+	@CustomMetric(	name = "maxReconnectTime",
+					kind = Metric.Kind.GAUGE,
+					description = "The longest time in milliseconds it took to get a lost connection back.")
+	public void setMaxReconnectTimeMetric(Metric maxReconnectTime) {
+		this.maxReconnectTime = maxReconnectTime;
+	}
+	
 	@CustomMetric(	name = "reconnectionAttempts",
 					kind = Metric.Kind.COUNTER,
 					description = "The accumulated number of times we have attempted to reconnect since the operator has been started.")
@@ -5,32 +5,185 @@
 /* Generated by Streams Studio: March 26, 2014 11:37:11 AM EDT */
 package com.ibm.streamsx.rabbitmq;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import com.ibm.streams.operator.OperatorContext;
+import com.ibm.streams.operator.OperatorContext.ContextCheck;
+import com.ibm.streams.operator.StreamingData.Punctuation;
 import com.ibm.streams.operator.StreamingInput;
 import com.ibm.streams.operator.Tuple;
+import com.ibm.streams.operator.compile.OperatorContextChecker;
 import com.ibm.streams.operator.logging.TraceLevel;
+import com.ibm.streams.operator.metrics.Metric;
+import com.ibm.streams.operator.model.CustomMetric;
 import com.ibm.streams.operator.model.InputPortSet;
 import com.ibm.streams.operator.model.InputPorts;
 import com.ibm.streams.operator.model.Parameter;
 import com.ibm.streams.operator.model.PrimitiveOperator;
+import com.ibm.streams.operator.state.Checkpoint;
+import com.ibm.streams.operator.state.ConsistentRegionContext;
+import com.ibm.streams.operator.state.StateHandler;
+import com.ibm.streamsx.rabbitmq.i18n.Messages;
 import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
 
 /**
  * This operator was originally contributed by Mohamed-Ali Said @saidmohamedali
  */
 @InputPorts(@InputPortSet(cardinality = 1, optional = false, description = ""))
 @PrimitiveOperator(name = "RabbitMQSink", description = RabbitMQSink.DESC)
-public class RabbitMQSink extends RabbitMQBaseOper {
+public class RabbitMQSink extends RabbitMQBaseOper implements StateHandler {
+
+	private static class HeldMessage {
+		final String routingKey;
+		final BasicProperties props;
+		final byte[] message;
+
+		HeldMessage(String routingKey, BasicProperties props, byte[] message) {
+			this.routingKey = routingKey;
+			this.props = props;
+			this.message = message;
+		}
+	}
 
 	private final Logger trace = Logger.getLogger(RabbitMQSink.class.getCanonicalName());
 	Integer deliveryMode = 1;
 	int maxMessageSendRetries = 0;
 	int messageSendRetryDelay = 10000;
-	private boolean firstConnection = true;
+	long maxMessageSendRetryDelay = 60000;
+	int retryQueueSize = 1000;
+	private RetryQueue retryQueue = null;
+	
+	private String spillDirectory = null;
+	private int spillSegmentSize = 64 * 1024 * 1024;
+	private long spillMaxBytes = 1024L * 1024 * 1024;
+	private double spillReplayRate = 0;
+	private SpillLog spillLog = null;
+	private SpillReplayer spillReplayer = null;
+	// Messages without headers all share the same immutable properties
+	private BasicProperties sharedProps = null;
+	private volatile boolean connectionReady = false;
+	private long connectionWaitDeadline = 0;
+	private long connectionWaitTimeout = 60000;
+	private final Object connectLock = new Object();
+	
+	private boolean publisherConfirms = false;
+	private int confirmWindowSize = 1000;
+	private long confirmTimeout = 0;
+	private ConsistentRegionContext crContext = null;
+	
+	private int publisherChannels = 1;
+	private int publisherConnections = 1;
+	private volatile PublisherChannel[] publishers = null;
+	
+	private int shardCount = 0;
+	private final AtomicLong nextShard = new AtomicLong();
+	
+	private int packSize = 1;
+	private long packLinger = 100;
+	private MessagePacker packer = null;
+	private BasicProperties packedProps = null;
+	private ScheduledFuture<?> packTimer = null;
+	
+	private String compression = null;
+	private int compressionMinSize = 1024;
+	private PayloadCodec codec = null;
+	private BasicProperties compressedProps = null;
+	private BasicProperties compressedPackedProps = null;
+	
+	private boolean asyncPublish = false;
+	private int publishRingSize = 8192;
+	private String publishWaitStrategy = PublishRing.WAIT_PARK;
+	private PublishRing publishRing = null;
+	private static final long RING_SHUTDOWN_TIMEOUT = 10000;
+	private static final long RETRY_SHUTDOWN_TIMEOUT = 10000;
+	
+	static final String BLOCKED_POLICY_BLOCK = "block"; //$NON-NLS-1$
+	static final String BLOCKED_POLICY_BUFFER = "buffer"; //$NON-NLS-1$
+	static final String BLOCKED_POLICY_DROP = "drop"; //$NON-NLS-1$
+	private String blockedPolicy = BLOCKED_POLICY_BLOCK;
+	private int blockedBufferSize = 10000;
+	private final ArrayDeque<HeldMessage> blockedBuffer = new ArrayDeque<HeldMessage>();
+	private final Object releaseLock = new Object();
+	// set while a thread delivers the last messages taken from the buffer
+	private volatile boolean releasing = false;
+	
+	private int chunkSize = 0;
+	private String chunkIdPrefix = null;
+	private final AtomicLong chunkCounter = new AtomicLong();
+	private final AtomicLong bytesBeforeCompression = new AtomicLong();
+	private final AtomicLong bytesAfterCompression = new AtomicLong();
+	private final AtomicLong compressionNanos = new AtomicLong();
+	
+	private Metric confirmWindowSizeMetric;
+	private Metric outstandingConfirms;
+	private Metric confirmLatency;
+	private Metric nackedMessages;
+	private Metric retryQueueDepth;
+	private Metric messageSendRetries;
+	private Metric droppedMessages;
+	// the value of droppedMessages after the last drain or reset
+	private long droppedAtDrain = 0;
+	private Metric bytesSpilled;
+	private Metric spillReplayLag;
+	private Metric compressionRatio;
+	private Metric compressionTime;
+	private Metric chunkedMessages;
+	private Metric publishRingOccupancy;
+	private Metric blockedBufferDepth;
+	private Metric handoffLatency;
+	
+	//consistent region checks
+	@ContextCheck(compile = true)
+	public static void checkInConsistentRegion(OperatorContextChecker checker) {
+		ConsistentRegionContext consistentRegionContext = 
+				checker.getOperatorContext().getOptionalContext(ConsistentRegionContext.class);
+		if (consistentRegionContext != null && consistentRegionContext.isStartOfRegion()){
+			checker.setInvalidContext(Messages.getString("OP_CANNOT_BE_START_OF_CONSISTENT_REGION"), null); //$NON-NLS-1$
+		}
+		// a dropped message could not be replayed
+		if (consistentRegionContext != null) {
+			checkParameterValue(checker, "blockedPolicy", //$NON-NLS-1$
+					BLOCKED_POLICY_BLOCK, BLOCKED_POLICY_BUFFER);
+		}
+	}
+	
+	@ContextCheck(compile = false)
+	public static void checkSinkParameters(OperatorContextChecker checker) {
+		checkPositiveParameter(checker, "confirmWindowSize"); //$NON-NLS-1$
+		checkPositiveParameter(checker, "confirmTimeout"); //$NON-NLS-1$
+		checkPositiveParameter(checker, "publisherChannels"); //$NON-NLS-1$
+		checkPositiveParameter(checker, "publisherConnections"); //$NON-NLS-1$
+		checkPositiveParameter(checker, "retryQueueSize"); //$NON-NLS-1$
+		checkPositiveParameter(checker, "spillSegmentSize"); //$NON-NLS-1$
+		checkPositiveParameter(checker, "spillMaxBytes"); //$NON-NLS-1$
+		checkPositiveParameter(checker, "packSize"); //$NON-NLS-1$
+		checkPositiveParameter(checker, "shardCount"); //$NON-NLS-1$
+		checkPositiveParameter(checker, "packLinger"); //$NON-NLS-1$
+		checkPositiveParameter(checker, "chunkSize"); //$NON-NLS-1$
+		checkPositiveParameter(checker, "publishRingSize"); //$NON-NLS-1$
+		checkParameterValue(checker, "publishWaitStrategy", //$NON-NLS-1$
+				PublishRing.WAIT_SPIN, PublishRing.WAIT_YIELD, PublishRing.WAIT_PARK);
+		checkParameterValue(checker, "blockedPolicy", //$NON-NLS-1$
+				BLOCKED_POLICY_BLOCK, BLOCKED_POLICY_BUFFER, BLOCKED_POLICY_DROP);
+		checkPositiveParameter(checker, "blockedBufferSize"); //$NON-NLS-1$
+	}
 	
 	@Override
 	public synchronized void initialize(OperatorContext context)
@@ -39,10 +192,112 @@ public class RabbitMQSink extends RabbitMQBaseOper {
 		// Must call super.initialize(context) to correctly setup an operator.
 		super.initialize(context);
 		super.initSchema(getInput(0).getStreamSchema());
+		sharedProps = new BasicProperties.Builder().deliveryMode(deliveryMode).build();
 		trace.log(TraceLevel.INFO, "Operator " + context.getName() + " initializing in PE: " //$NON-NLS-1$ //$NON-NLS-2$
 				+ context.getPE().getPEId() + " in Job: " //$NON-NLS-1$
 				+ context.getPE().getJobId());
 
+		// In a consistent region, drain() waits for the broker to confirm all messages
+		crContext = context.getOptionalContext(ConsistentRegionContext.class);
+		if (crContext != null && !publisherConfirms) {
+			trace.log(TraceLevel.INFO, "Operator is in a consistent region, enabling publisher confirms."); //$NON-NLS-1$
+			publisherConfirms = true;
+		}
+		// spilled messages are only removed from disk once the broker confirmed them
+		if (spillDirectory != null && !publisherConfirms) {
+			trace.log(TraceLevel.INFO, "Operator spills messages to disk, enabling publisher confirms."); //$NON-NLS-1$
+			publisherConfirms = true;
+		}
+		
+		if (publisherConfirms) {
+			confirmWindowSizeMetric.setValue(confirmWindowSize);
+		}
+		
+		if (maxMessageSendRetries > 0) {
+			retryQueue = new RetryQueue(new RetryQueue.Publisher() {
+				@Override
+				public void publish(String routingKey, BasicProperties props, byte[] message) throws Exception {
+					publishMessage(routingKey, props, message);
+					if (isConnected.getValue() == 0) {
+						setIsConnectedValue(1);
+					}
+				}
+			}, retryQueueSize, maxMessageSendRetries, messageSendRetryDelay, maxMessageSendRetryDelay,
+					retryQueueDepth, messageSendRetries, droppedMessages);
+		}
+		
+		if (spillDirectory != null) {
+			// one directory per operator, so that a restarted operator finds its own messages
+			File directory = new File(spillDirectory);
+			if (!directory.isAbsolute()) {
+				directory = new File(context.getPE().getDataDirectory(), spillDirectory);
+			}
+			spillLog = new SpillLog(new File(directory, context.getName()), spillSegmentSize, spillMaxBytes);
+			spillLog.open();
+			spillReplayer = new SpillReplayer(spillLog, new SpillReplayer.Publisher() {
+				// the channels published on since the last confirm, only used by the replay thread
+				private final Set<PublisherChannel> published = new HashSet<PublisherChannel>();
+
+				@Override
+				public void publish(String exchangeName, String routingKey, BasicProperties props, byte[] message) throws Exception {
+					PublisherChannel publisher = selectPublisher(routingKey);
+					publisher.publish(exchangeName, routingKey, props, message);
+					published.add(publisher);
+				}
+
+				@Override
+				public boolean awaitConfirms() throws Exception {
+					try {
+						for (PublisherChannel publisher : published) {
+							boolean confirmed = confirmTimeout > 0
+									? publisher.getChannel().waitForConfirms(confirmTimeout)
+									: publisher.getChannel().waitForConfirms();
+							if (!confirmed) {
+								return false;
+							}
+						}
+						return true;
+					} finally {
+						published.clear();
+					}
+				}
+			}, spillReplayRate, getNetworkRecoveryInterval(), spillReplayLag);
+		}
+		
+		if (packSize > 1) {
+			packedProps = new BasicProperties.Builder().deliveryMode(deliveryMode)
+					.contentType(MessagePacker.PACKED_CONTENT_TYPE).build();
+			packer = new MessagePacker(new MessagePacker.Sender() {
+				@Override
+				public void send(String routingKey, byte[] packed) {
+					sendPack(routingKey, packed);
+				}
+			}, packSize);
+		}
+		
+		if (compression != null) {
+			codec = PayloadCodecs.get(compression);
+			if (codec == null) {
+				throw new IllegalArgumentException(Messages.getString("PARAM_VALUE_NOT_SUPPORTED", "compression", compression, //$NON-NLS-1$ //$NON-NLS-2$
+						PayloadCodecs.DEFLATE + ", " + PayloadCodecs.GZIP)); //$NON-NLS-1$
+			}
+			compressedProps = sharedProps.builder().contentEncoding(codec.getName()).build();
+			if (packedProps != null) {
+				compressedPackedProps = packedProps.builder().contentEncoding(codec.getName()).build();
+			}
+		}
+		
+		if (asyncPublish) {
+			publishRing = new PublishRing(publishRingSize, new PublishRing.Publisher() {
+				@Override
+				public void publish(String routingKey, BasicProperties props, byte[] message) throws Exception {
+					dispatchMessage(routingKey, props, message);
+				}
+			}, publishWaitStrategy, publishRingOccupancy, handoffLatency, droppedMessages);
+		}
+		
+		// chunk ids must not collide with those of other operators or earlier runs
+		chunkIdPrefix = UUID.randomUUID().toString() + "-"; //$NON-NLS-1$
 	}
 
 	@Override
@@ -52,53 +307,352 @@ public class RabbitMQSink extends RabbitMQBaseOper {
 				+ " all ports are ready in PE: " + context.getPE().getPEId() //$NON-NLS-1$
 				+ " in Job: " + context.getPE().getJobId()); //$NON-NLS-1$
 
+		startConnecting();
+		
+		if (retryQueue != null) {
+			retryQueue.start(context.getThreadFactory());
+		}
+		if (spillReplayer != null) {
+			spillReplayer.start(context.getThreadFactory());
+		}
+		if (publishRing != null) {
+			publishRing.start(context.getThreadFactory());
+		}
+		if (packer != null) {
+			packTimer = context.getScheduledExecutorService().scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					packer.flushAll();
+				}
+			}, packLinger, packLinger, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/*
+	 * Set up the pool of channels we publish on. The channel of the base 
+	 * operator is the first one, the others are spread over publisherConnections 
+	 * connections. 
+	 */
+	@Override
+	public void initializeRabbitChannelAndConnection() throws Exception {
+		super.initializeRabbitChannelAndConnection();
+		
+		List<Connection> connections = new ArrayList<Connection>();
+		connections.add(connection);
+		for (int i = 1; i < Math.min(publisherConnections, publisherChannels); i++) {
+			connections.add(openAdditionalConnection());
+		}
+		
+		PublisherChannel[] pool = new PublisherChannel[publisherChannels];
+		pool[0] = newPublisherChannel(channel);
+		for (int i = 1; i < publisherChannels; i++) {
+			pool[i] = newPublisherChannel(createChannel(connections.get(i % connections.size())));
+		}
+		publishers = pool;
+		trace.log(TraceLevel.INFO, "Publishing on " + publisherChannels + " channel(s) over " + connections.size() + " connection(s)."); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		
+		if (spillReplayer != null) {
+			spillReplayer.wakeUp();
+		}
+	}
+	
+	@Override
+	public void connectionRecovered() {
+		if (spillReplayer != null) {
+			spillReplayer.wakeUp();
+		}
+	}
+	
+	/*
+	 * Put a new channel into confirm mode if required. A recovered channel keeps 
+	 * its confirm mode and listeners, so this only has to happen when we create one.
+	 */
+	private PublisherChannel newPublisherChannel(Channel publisherChannel) throws IOException {
+		PublisherConfirmTracker confirmTracker = null;
+		if (publisherConfirms) {
+			confirmTracker = new PublisherConfirmTracker(confirmWindowSize, outstandingConfirms, confirmLatency,
+					nackedMessages);
+			publisherChannel.confirmSelect();
+			publisherChannel.addConfirmListener(confirmTracker);
+			publisherChannel.addShutdownListener(confirmTracker);
+			trace.log(TraceLevel.INFO, "Publisher confirms enabled with a window of " + confirmWindowSize + " messages."); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		return new PublisherChannel(publisherChannel, confirmTracker);
+	}
+	
+	/*
+	 * Messages with the same routing key always go to the same channel, which
+	 * keeps them in order. Without a routing key attribute, every input thread
+	 * sticks to one channel instead.
+	 */
+	private PublisherChannel selectPublisher(String routingKey) throws IOException {
+		PublisherChannel[] pool = publishers;
+		if (pool == null) {
+			throw new IOException("Not connected to RabbitMQ yet"); //$NON-NLS-1$
+		}
+		return pool[selectStripe(routingKey)];
+	}
+	
+	private int selectStripe(String routingKey) {
+		if (publisherChannels == 1) {
+			return 0;
+		}
+		int hash = routingKeyAH.isAvailable() ? routingKey.hashCode() : Long.hashCode(Thread.currentThread().getId());
+		return (hash & Integer.MAX_VALUE) % publisherChannels;
 	}
 
 	@SuppressWarnings("unchecked")
 	@Override
 	public void process(StreamingInput<Tuple> stream, Tuple tuple) throws Exception {
 
-		// Our first time, we need to setup our connection
-		if (firstConnection) {
-			firstConnection = false;
-			try {
-				readyForShutdown = false;
-				initializeRabbitChannelAndConnection();
-			} finally {
-				readyForShutdown = true;
+		// The connection is set up in the background, wait for it for a while
+		if (!connectionReady) {
+			synchronized (connectLock) {
+				if (!connectionReady) {
+					waitForConnection();
+				}
 			}
 		}
 		
 		// Handle case of lost connection/failed authentication
 		// but we have new credentials from appConfig
-		if (isConnected.getValue() == 0 && newCredentialsExist()) {
-			try {
-				readyForShutdown = false;
-				resetRabbitClient();
-			} finally {
-				readyForShutdown = true;
+		if (connectionReady && isConnected.getValue() == 0) {
+			// only one input thread resets the client, the others find it connected again
+			synchronized (connectLock) {
+				if (isConnected.getValue() == 0 && newCredentialsExist()) {
+					try {
+						readyForShutdown = false;
+						resetRabbitClient();
+					} finally {
+						readyForShutdown = true;
+					}
+				}
 			}
 		}
 		
 		byte[] message = messageAH.getBytes(tuple);
 		String routingKey = ""; //$NON-NLS-1$
-		Map<String, Object> headers = new HashMap<String, Object>();
 		if (routingKeyAH.isAvailable()) {
-			routingKey = tuple.getString(routingKeyAH.getName());
+			routingKey = tuple.getString(routingKeyAH.getIndex());
+		}
+		if (shardCount > 0) {
+			routingKey = getShardRoutingKey(routingKey, selectShard(routingKey));
 		}
 		
-		BasicProperties.Builder propsBuilder = new BasicProperties.Builder();
+		BasicProperties props = sharedProps;
 		if (messageHeaderAH.isAvailable()) {
-			headers = (Map<String, Object>) tuple.getMap(messageHeaderAH.getName());
-			propsBuilder.headers(headers);
+			Map<String, Object> headers = (Map<String, Object>) tuple.getMap(messageHeaderAH.getIndex());
+			if (!headers.isEmpty()) {
+				props = new BasicProperties.Builder().deliveryMode(deliveryMode).headers(headers).build();
+			}
+		}
+		
+		if (packer != null) {
+			if (props == sharedProps) {
+				packer.add(routingKey, message);
+				return;
+			}
+			// headers cannot be packed, but the message must not overtake the pack of its routing key
+			packer.flush(routingKey);
+		}
+		sendMessage(routingKey, props, message);
+	}
+	
+	/*
+	 * Messages with the same routing key go to the same shard. Without a 
+	 * routing_key attribute, the messages are spread over the shards in turn.
+	 */
+	private int selectShard(String routingKey) {
+		if (routingKeyAH.isAvailable()) {
+			return Math.floorMod(routingKey.hashCode(), shardCount);
+		}
+		return (int) (nextShard.getAndIncrement() % shardCount);
+	}
+	
+	/*
+	 * The first tuples wait up to connectionWaitTimeout in total. Once the time 
+	 * is up, tuples are handled like failed publishes until the connection is ready.
+	 */
+	private void waitForConnection() throws Exception {
+		if (connectionWaitDeadline == 0) {
+			connectionWaitDeadline = System.currentTimeMillis() + connectionWaitTimeout;
+		}
+		try {
+			readyForShutdown = false;
+			connectionReady = awaitConnection(Math.max(0, connectionWaitDeadline - System.currentTimeMillis()));
+		} catch (Exception e) {
+			// reported once, like a failed connection attempt on the first tuple
+			connectionReady = true;
+			throw e;
+		} finally {
+			readyForShutdown = true;
+		}
+	}
+	
+	private void sendMessage(String routingKey, BasicProperties props, byte[] message) throws Exception {
+		if (codec != null && message.length >= compressionMinSize) {
+			long start = System.nanoTime();
+			byte[] compressed = codec.encode(message);
+			// not worth it if the message does not get smaller
+			boolean smaller = compressed.length < message.length;
+			recordCompression(message.length, smaller ? compressed.length : 0, System.nanoTime() - start);
+			if (smaller) {
+				message = compressed;
+				props = compressedProperties(props);
+			}
+		}
+		
+		if (chunkSize > 0 && message.length > chunkSize) {
+			sendChunks(routingKey, props, message);
+		} else {
+			forwardMessage(routingKey, props, message);
+		}
+	}
+	
+	/*
+	 * In async mode, the I/O thread takes it from here.
+	 */
+	private void forwardMessage(String routingKey, BasicProperties props, byte[] message) throws Exception {
+		if (publishRing != null) {
+			publishRing.put(routingKey, props, message);
+		} else {
+			dispatchMessage(routingKey, props, message);
+		}
+	}
+	
+	/*
+	 * Split a large message into chunks that RabbitMQSource puts together 
+	 * again, so that it does not hold up the other messages on the connection.
+	 * The chunks have the same routing key, so they go out on the same channel
+	 * in order.
+	 */
+	private void sendChunks(String routingKey, BasicProperties props, byte[] message) throws Exception {
+		String id = chunkIdPrefix + chunkCounter.incrementAndGet();
+		int count = (message.length + chunkSize - 1) / chunkSize;
+		for (int i = 0; i < count; i++) {
+			Map<String, Object> headers = new HashMap<String, Object>();
+			if (props.getHeaders() != null) {
+				headers.putAll(props.getHeaders());
+			}
+			headers.put(ChunkAssembler.CHUNK_ID, id);
+			headers.put(ChunkAssembler.CHUNK_INDEX, i);
+			headers.put(ChunkAssembler.CHUNK_COUNT, count);
+			byte[] chunk = Arrays.copyOfRange(message, i * chunkSize, Math.min(message.length, (i + 1) * chunkSize));
+			forwardMessage(routingKey, props.builder().headers(headers).build(), chunk);
+		}
+		chunkedMessages.increment();
+	}
+	
+	private void dispatchMessage(String routingKey, BasicProperties props, byte[] message) throws Exception {
+		// While the broker blocks us, the blockedPolicy decides what happens
+		if (isBlocked() && holdWhileBlocked(routingKey, props, message)) {
+			return;
+		}
+		// Messages held while we were blocked go first
+		if (blockedBufferDepth.getValue() > 0 || releasing) {
+			releaseBlockedBuffer();
+		}
+		deliverMessage(routingKey, props, message);
+	}
+	
+	/*
+	 * @return true if the message has been buffered or dropped, false if we 
+	 * have waited for the broker to unblock us.
+	 */
+	private boolean holdWhileBlocked(String routingKey, BasicProperties props, byte[] message) throws InterruptedException {
+		if (BLOCKED_POLICY_DROP.equals(blockedPolicy)) {
+			droppedMessages.increment();
+			return true;
+		}
+		if (BLOCKED_POLICY_BUFFER.equals(blockedPolicy)) {
+			synchronized (blockedBuffer) {
+				if (blockedBuffer.size() < blockedBufferSize) {
+					blockedBuffer.add(new HeldMessage(routingKey, props, message));
+					blockedBufferDepth.setValue(blockedBuffer.size());
+					return true;
+				}
+			}
+		}
+		awaitUnblocked();
+		return false;
+	}
+	
+	/*
+	 * Messages are taken from the buffer one at a time and delivered without
+	 * holding it, so that threads buffering new messages do not wait for the 
+	 * broker. One thread at a time releases, to keep the messages in order.
+	 */
+	private void releaseBlockedBuffer() throws Exception {
+		synchronized (releaseLock) {
+			releasing = true;
+			try {
+				HeldMessage held;
+				while ((held = pollBlockedBuffer()) != null) {
+					try {
+						deliverMessage(held.routingKey, held.props, held.message);
+					} catch (Exception e) {
+						droppedMessages.increment();
+						throw e;
+					}
+				}
+			} finally {
+				releasing = false;
+			}
+		}
+	}
+	
+	private HeldMessage pollBlockedBuffer() {
+		synchronized (blockedBuffer) {
+			if (blockedBuffer.isEmpty() || isBlocked()) {
+				return null;
+			}
+			HeldMessage held = blockedBuffer.poll();
+			blockedBufferDepth.setValue(blockedBuffer.size());
+			return held;
+		}
+	}
+	
+	/*
+	 * Publish what we have buffered while blocked, even if no further tuples 
+	 * arrive. Publishing may block, so it does not run on the scheduler that 
+	 * the operator's timers share.
+	 */
+	@Override
+	protected void connectionUnblocked() {
+		if (blockedBufferDepth.getValue() > 0) {
+			Thread releaser = getOperatorContext().getThreadFactory().newThread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						releaseBlockedBuffer();
+					} catch (Exception e) {
+						trace.log(TraceLevel.ERROR, "Exception message:" + e.getMessage()); //$NON-NLS-1$
+					}
+				}
+			});
+			releaser.setDaemon(true);
+			releaser.start();
+		}
+	}
+	
+	private void deliverMessage(String routingKey, BasicProperties props, byte[] message) throws Exception {
+		// While we are disconnected, messages go to disk. Once messages have been
+		// spilled, the next ones are spilled behind them until they are replayed.
+		if (spillLog != null && (isConnected.getValue() == 0 || !spillLog.isEmpty())) {
+			spill(routingKey, props, message);
+			return;
+		}
+		
+		// Messages waiting to be resent go first
+		if (retryQueue != null && retryQueue.addIfPending(routingKey, props, message)) {
+			return;
 		}
-		propsBuilder.deliveryMode(deliveryMode);
 		
 		try {
 			if (trace.isLoggable(TraceLevel.DEBUG))
 				trace.log(TraceLevel.DEBUG, "Producing message: " + message.toString() + " in thread: " + Thread.currentThread().getName()); //$NON-NLS-1$ //$NON-NLS-2$
 			
-			channel.basicPublish(exchangeName, routingKey, propsBuilder.build(), message);
+			publishMessage(routingKey, props, message);
 			if (isConnected.getValue() == 0) {
 				// We succeeded at publish, so we must be connected. 
 				// Adding this to deal with an issue where we catch a stale
@@ -107,30 +661,199 @@ public class RabbitMQSink extends RabbitMQBaseOper {
 			}
 		} catch (Exception e) {
 			trace.log(TraceLevel.ERROR, "Exception message:" + e.getMessage() + "\r\n"); //$NON-NLS-1$ //$NON-NLS-2$
-			handleFailedPublish(message, routingKey, propsBuilder);
+			handleFailedPublish(message, routingKey, props);
 		}
 	}
 
-	private void handleFailedPublish(byte[] message, String routingKey, BasicProperties.Builder propsBuilder) {
-		Boolean failedToSend = true;
-		int attemptCount = 0;
-		while (failedToSend && attemptCount < maxMessageSendRetries) {
-			attemptCount++;
+	private void publishMessage(String routingKey, BasicProperties props, byte[] message) throws IOException, InterruptedException {
+		selectPublisher(routingKey).publish(exchangeName, routingKey, props, message);
+	}
+
+	private BasicProperties compressedProperties(BasicProperties props) {
+		if (props == sharedProps) {
+			return compressedProps;
+		}
+		if (props == packedProps) {
+			return compressedPackedProps;
+		}
+		return props.builder().contentEncoding(codec.getName()).build();
+	}
+	
+	/*
+	 * @param compressedSize	0 if the message is sent uncompressed, then only the time counts.
+	 */
+	private void recordCompression(int originalSize, int compressedSize, long nanos) {
+		if (compressedSize > 0) {
+			long before = bytesBeforeCompression.addAndGet(originalSize);
+			long after = bytesAfterCompression.addAndGet(compressedSize);
+			compressionRatio.setValue(after * 100 / before);
+		}
+		compressionTime.setValue(TimeUnit.NANOSECONDS.toMillis(compressionNanos.addAndGet(nanos)));
+	}
+	
+	/*
+	 * A pack may be sent by another thread than the one that filled it, so 
+	 * a failure is not passed on; the pack is handled like any failed publish.
+	 */
+	private void sendPack(String routingKey, byte[] packed) {
+		try {
+			sendMessage(routingKey, packedProps, packed);
+			return;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			trace.log(TraceLevel.ERROR, "Exception message:" + e.getMessage()); //$NON-NLS-1$
 			try {
-				Thread.sleep(messageSendRetryDelay);
-				trace.log(TraceLevel.ERROR, "Attempting to resend. Try number: " + attemptCount); //$NON-NLS-1$
-				channel.basicPublish(exchangeName, routingKey, propsBuilder.build(), message);
-				failedToSend = false;
-			} catch (Exception e1) {
-				e1.printStackTrace();
+				handleFailedPublish(packed, routingKey, packedProps);
+				return;
+			} catch (InterruptedException e1) {
+				Thread.currentThread().interrupt();
+			} catch (IOException e1) {
+				trace.log(TraceLevel.ERROR, "Exception message:" + e1.getMessage()); //$NON-NLS-1$
 			}
 		}
+		trace.log(TraceLevel.ERROR, "Dropping packed message."); //$NON-NLS-1$
+		droppedMessages.increment();
+	}
+	
+	@Override
+	public void processPunctuation(StreamingInput<Tuple> stream, Punctuation mark) throws Exception {
+		if (packer != null && mark == Punctuation.FINAL_MARKER) {
+			packer.flushAll();
+		}
+		super.processPunctuation(stream, mark);
+	}
 
-		// if we still can't send after the number of maxMessageSendRetries,
-		// we want to log error and move on
-		if (failedToSend) {
+	/*
+	 * Failed messages are resent by the retry queue in the background, so that
+	 * we can go on accepting tuples until the queue is full.
+	 */
+	private void handleFailedPublish(byte[] message, String routingKey, BasicProperties props) throws InterruptedException, IOException {
+		if (spillLog != null) {
+			spill(routingKey, props, message);
+		} else if (retryQueue != null) {
+			retryQueue.addFailed(routingKey, props, message);
+		} else {
 			// TODO: Shall we reset "isConnected" here?
-			trace.log(TraceLevel.ERROR, "Failed to send message after " + attemptCount + " attempts."); //$NON-NLS-1$ //$NON-NLS-2$
+			trace.log(TraceLevel.ERROR, "Failed to send message after 0 attempts."); //$NON-NLS-1$
+			droppedMessages.increment();
+		}
+	}
+
+	private void spill(String routingKey, BasicProperties props, byte[] message) throws IOException {
+		int bytes = spillLog.append(exchangeName, routingKey, props, message);
+		if (bytes > 0) {
+			bytesSpilled.incrementValue(bytes);
+		} else {
+			trace.log(TraceLevel.ERROR, "Spill directory has reached spillMaxBytes, dropping message."); //$NON-NLS-1$
+			droppedMessages.increment();
+		}
+	}
+
+	/*
+	 * Before a checkpoint, every message we sent must be in the hands of the broker.
+	 */
+	@Override
+	public void drain() throws Exception {
+		long timeout = confirmTimeout > 0 ? confirmTimeout : (long) (crContext.getDrainTimeout() * 1000);
+		long deadline = System.currentTimeMillis() + timeout;
+		trace.log(TraceLevel.DEBUG, "Draining, waiting for publisher confirms."); //$NON-NLS-1$
+		
+		if (packer != null) {
+			packer.flushAll();
+		}
+		if (publishRing != null && !publishRing.awaitEmpty(remaining(deadline))) {
+			throw new TimeoutException(Messages.getString("MESSAGES_NOT_CONFIRMED", publishRingOccupancy.getValue())); //$NON-NLS-1$
+		}
+		releaseBlockedBuffer();
+		if (blockedBufferDepth.getValue() > 0) {
+			throw new TimeoutException(Messages.getString("MESSAGES_NOT_CONFIRMED", blockedBufferDepth.getValue())); //$NON-NLS-1$
+		}
+		
+		if (retryQueue != null && !retryQueue.awaitEmpty(remaining(deadline))) {
+			throw new TimeoutException(Messages.getString("MESSAGES_NOT_CONFIRMED", retryQueueDepth.getValue())); //$NON-NLS-1$
+		}
+		
+		// spilled messages are only covered by a confirm once they have been replayed
+		if (spillLog != null && !spillLog.isEmpty()) {
+			spillReplayer.wakeUp();
+			if (!spillLog.awaitEmpty(remaining(deadline))) {
+				throw new TimeoutException(Messages.getString("MESSAGES_NOT_CONFIRMED", spillLog.getPendingMessages())); //$NON-NLS-1$
+			}
+		}
+		
+		PublisherChannel[] pool = publishers;
+		long lost = 0;
+		if (pool != null) {
+			for (PublisherChannel publisher : pool) {
+				PublisherConfirmTracker tracker = publisher.getConfirmTracker();
+				if (!tracker.awaitAllConfirmed(remaining(deadline))) {
+					throw new TimeoutException(Messages.getString("MESSAGES_NOT_CONFIRMED", outstandingConfirms.getValue())); //$NON-NLS-1$
+				}
+				lost += tracker.takeLost();
+			}
+		}
+		// messages that were dropped on the way never got a delivery tag to be nacked
+		long dropped = droppedMessages.getValue();
+		lost += dropped - droppedAtDrain;
+		droppedAtDrain = dropped;
+		if (lost > 0) {
+			// fail the drain, so that the region is reset and the tuples are replayed
+			throw new IOException(Messages.getString("MESSAGES_NOT_CONFIRMED", lost)); //$NON-NLS-1$
+		}
+	}
+	
+	private static long remaining(long deadline) {
+		return Math.max(0, deadline - System.currentTimeMillis());
+	}
+	
+	@Override
+	public void checkpoint(Checkpoint checkpoint) throws Exception {
+		// no state, everything has been confirmed when drained
+	}
+	
+	@Override
+	public void reset(Checkpoint checkpoint) throws Exception {
+		trace.log(TraceLevel.INFO, "Reset to checkpoint " + checkpoint.getSequenceId()); //$NON-NLS-1$
+		resetInFlight();
+	}
+	
+	@Override
+	public void resetToInitialState() throws Exception {
+		trace.log(TraceLevel.INFO, "Reset to initial state"); //$NON-NLS-1$
+		resetInFlight();
+	}
+	
+	@Override
+	public void retireCheckpoint(long id) throws Exception {
+		// drain() leaves nothing in flight that belongs to a checkpoint
+	}
+	
+	@Override
+	public void close() throws IOException {
+	}
+	
+	/*
+	 * The tuples since the last checkpoint will be submitted again, 
+	 * so we stop waiting for their messages.
+	 */
+	private void resetInFlight() {
+		droppedAtDrain = droppedMessages.getValue();
+		synchronized (blockedBuffer) {
+			blockedBuffer.clear();
+			blockedBufferDepth.setValue(0);
+		}
+		if (packer != null) {
+			packer.clear();
+		}
+		if (retryQueue != null) {
+			retryQueue.clear();
+		}
+		PublisherChannel[] pool = publishers;
+		if (pool != null) {
+			for (PublisherChannel publisher : pool) {
+				publisher.getConfirmTracker().clear();
+			}
 		}
 	}
 
@@ -149,13 +872,299 @@ public class RabbitMQSink extends RabbitMQBaseOper {
 		maxMessageSendRetries = value; 
 	}
 	
-	@Parameter(optional = true, description = "This optional parameter specifies the time in milliseconds to wait before the next delivery attempt. If the maxMessageSendRetries is specified, you must also specify a value for this parameter.")
+	@Parameter(optional = true, description = "This optional parameter specifies the time in milliseconds to wait before the first retry of a message. The delay doubles with every further retry, up to maxMessageSendRetryDelay. If the maxMessageSendRetries is specified, you must also specify a value for this parameter.")
 	public void setMessageSendRetryDelay(int value) {
 		messageSendRetryDelay = value; 
 	}
+	
+	@Parameter(optional = true, description = "This optional parameter specifies the maximum time in milliseconds to wait between two retries of a message. The default value is 60000.")
+	public void setMaxMessageSendRetryDelay(long value) {
+		maxMessageSendRetryDelay = value; 
+	}
+	
+	@Parameter(optional = true, description = "This optional parameter specifies the maximum number of messages that can wait to be resent. "
+			+ "Failed messages are resent in the background, and while messages are waiting, new messages are queued behind them to keep their order. "
+			+ "Only when the queue is full does the operator stop accepting tuples. The default value is 1000.")
+	public void setRetryQueueSize(int value) {
+		retryQueueSize = value; 
+	}
+
+	@Parameter(optional = true, description = "Enables publisher confirms. The channel is put into confirm mode and the broker acknowledges every message it has taken responsibility for. "
+			+ "Confirms are handled asynchronously, so publishing only waits when the number of unconfirmed messages reaches confirmWindowSize. Publisher confirms are always enabled in a consistent region and when spillDirectory is specified. Default is false.")
+	public void setPublisherConfirms(boolean value) {
+		publisherConfirms = value;
+	}
+	
+	@Parameter(optional = true, description = "If publisherConfirms is set to true, this is the maximum number of messages per publisher channel that can be waiting for a confirm from the broker. "
+			+ "When the window is full, the operator waits for confirms before it sends the next message. The default is 1000.")
+	public void setConfirmWindowSize(int value) {
+		confirmWindowSize = value;
+	}
+	
+	@Parameter(optional = true, description = "In a consistent region, this is the maximum time (in ms) to wait for all messages to be confirmed by the broker when the region is drained. "
+			+ "If the messages are not confirmed in time, or the broker rejects any of them, the region is reset. The default is the drain timeout of the consistent region.")
+	public void setConfirmTimeout(long value) {
+		confirmTimeout = value;
+	}
+	
+	@Parameter(optional = true, description = "The number of channels to publish on. Tuples are distributed over the channels by the hash of their routing key, "
+			+ "so messages with the same routing key keep their order. If there is no routing key attribute, each input thread publishes on one channel. "
+			+ "More than one channel only helps if tuples arrive on several threads, for example with a threaded input port. The default is 1.")
+	public void setPublisherChannels(int value) {
+		publisherChannels = value;
+	}
+	
+	@Parameter(optional = true, description = "The number of connections the publisher channels are spread over. "
+			+ "It cannot be more than publisherChannels. The default is 1.")
+	public void setPublisherConnections(int value) {
+		publisherConnections = value;
+	}
+	
+	@Parameter(optional = true, description = "Directory to store messages in while the operator is not connected to the broker. "
+			+ "A relative path is relative to the PE data directory. Each operator uses a sub-directory named after the operator. "
+			+ "Messages are written to memory-mapped segment files and published in order once the connection is back. "
+			+ "A message is removed from disk once the broker has confirmed it, so this parameter enables publisher confirms. "
+			+ "If this parameter is specified, messages that fail to send are stored rather than resent from memory. "
+			+ "Messages left over when the operator stops are published when it is started again. "
+			+ "Message header values are stored as strings. By default, messages are not stored on disk.")
+	public void setSpillDirectory(String value) {
+		spillDirectory = value;
+	}
+	
+	@Parameter(optional = true, description = "The size in bytes of a spill segment file. Segment files are deleted once all of their messages have been published. The default is 64 MB.")
+	public void setSpillSegmentSize(int value) {
+		spillSegmentSize = value;
+	}
+	
+	@Parameter(optional = true, description = "The maximum size in bytes of all spill segment files together. Messages that do not fit are dropped. The default is 1 GB.")
+	public void setSpillMaxBytes(long value) {
+		spillMaxBytes = value;
+	}
+	
+	@Parameter(optional = true, description = "The maximum number of stored messages per second that are published once the connection is back. The default is 0 (unlimited).")
+	public void setSpillReplayRate(double value) {
+		spillReplayRate = value;
+	}
+	
+	
+	@Parameter(optional = true, description = "The operator connects to the broker in the background once its ports are ready. "
+			+ "This is the maximum time in milliseconds that the first tuples wait for the connection. "
+			+ "Tuples that arrive after this time, while the operator is still not connected, are handled like messages that failed to publish. The default is 60000.")
+	public void setConnectionWaitTimeout(long value) {
+		connectionWaitTimeout = value;
+	}
+	
+	@Parameter(optional = true, description = "The number of queue shards of a parallel region of RabbitMQSource operators with shardQueues, "
+			+ "which is the width of that region. Each message is published with the routing key of a shard: the routing key followed by a dot and the shard index, "
+			+ "or just the shard index if there is no routing key. Messages with the same routing key go to the same shard, "
+			+ "messages without a routing_key attribute are spread over the shards in turn. "
+			+ "Not needed for a consistent-hash exchange, which spreads the messages by itself. The default is 0 (no sharding).")
+	public void setShardCount(int value) {
+		shardCount = value;
+	}
+	
+	@Parameter(optional = true, description = "The number of tuples whose messages are packed into one RabbitMQ message. "
+			+ "Messages are packed per routing key, and a RabbitMQSource unpacks them into individual tuples again. "
+			+ "Tuples with message headers are not packed. The default is 1, which sends every message on its own.")
+	public void setPackSize(int value) {
+		packSize = value;
+	}
+	
+	@Parameter(optional = true, description = "If packSize is greater than 1, this is the interval in milliseconds at which incomplete packs are sent. "
+			+ "The default is 100.")
+	public void setPackLinger(long value) {
+		packLinger = value;
+	}
+	
+	@Parameter(optional = true, description = "Compresses message bodies with this codec and sets their contentEncoding property, "
+			+ "so that a RabbitMQSource with the decompress parameter set decompresses them again. The built-in codecs are \\\"deflate\\\" and \\\"gzip\\\". "
+			+ "Further codecs can be added as a jar in the opt/downloaded directory of the toolkit that provides a com.ibm.streamsx.rabbitmq.PayloadCodec service. "
+			+ "By default, messages are not compressed.")
+	public void setCompression(String value) {
+		compression = value;
+	}
+	
+	@Parameter(optional = true, description = "If compression is specified, messages smaller than this size in bytes are not compressed. The default is 1024.")
+	public void setCompressionMinSize(int value) {
+		compressionMinSize = value;
+	}
+	
+	@Parameter(optional = true, description = "Messages larger than this size in bytes are split into chunks of this size, "
+			+ "which a RabbitMQSource puts together again into one tuple. The chunks carry their message id, index and count in message headers. "
+			+ "If compression is specified, the compressed message is split. By default, messages are not split.")
+	public void setChunkSize(int value) {
+		chunkSize = value;
+	}
+	
+	@Parameter(optional = true, description = "If set to true, messages are handed over to a dedicated thread that publishes them, "
+			+ "so that a slow connection to the broker does not hold up the input port until the hand-over buffer is full. The default is false.")
+	public void setAsyncPublish(boolean value) {
+		asyncPublish = value;
+	}
+	
+	@Parameter(optional = true, description = "If asyncPublish is set to true, this is the number of messages that can wait to be published by the publishing thread. "
+			+ "It is rounded up to a power of two. The default is 8192.")
+	public void setPublishRingSize(int value) {
+		publishRingSize = value;
+	}
+	
+	@Parameter(optional = true, description = "If asyncPublish is set to true, this specifies how the threads wait for each other: "
+			+ "\\\"spin\\\" busy-waits for the lowest latency, but needs a CPU core of its own, \\\"yield\\\" yields the CPU while waiting, "
+			+ "and \\\"park\\\" puts the thread to sleep. The default is \\\"park\\\".")
+	public void setPublishWaitStrategy(String value) {
+		publishWaitStrategy = value;
+	}
+	
+	@Parameter(optional = true, description = "Specifies what happens to messages while the broker blocks the connection because of a memory or disk alarm. "
+			+ "With \\\"block\\\", the operator waits until the connection is unblocked. With \\\"buffer\\\", messages are held in memory "
+			+ "up to blockedBufferSize and published once the connection is unblocked, then the operator waits. With \\\"drop\\\", messages are dropped "
+			+ "and counted in the droppedMessages metric; \\\"drop\\\" cannot be used in a consistent region. The default is \\\"block\\\".")
+	public void setBlockedPolicy(String value) {
+		blockedPolicy = value;
+	}
+	
+	@Parameter(optional = true, description = "If blockedPolicy is \\\"buffer\\\", this is the maximum number of messages held in memory while the connection is blocked. "
+			+ "The default is 10000.")
+	public void setBlockedBufferSize(int value) {
+		blockedBufferSize = value;
+	}
+	
+	@CustomMetric(	name = "confirmWindowSize",
+					kind = Metric.Kind.GAUGE,
+					description = "The maximum number of messages that can be waiting for a publisher confirm. Zero if publisher confirms are not enabled.")
+	public void setConfirmWindowSizeMetric(Metric confirmWindowSizeMetric) {
+		this.confirmWindowSizeMetric = confirmWindowSizeMetric;
+	}
+	
+	@CustomMetric(	name = "outstandingConfirms",
+					kind = Metric.Kind.GAUGE,
+					description = "The number of messages that have been sent but not yet confirmed by the broker.")
+	public void setOutstandingConfirmsMetric(Metric outstandingConfirms) {
+		this.outstandingConfirms = outstandingConfirms;
+	}
+	
+	@CustomMetric(	name = "confirmLatency",
+					kind = Metric.Kind.TIME,
+					description = "The time in milliseconds between sending a message and receiving the latest publisher confirm.")
+	public void setConfirmLatencyMetric(Metric confirmLatency) {
+		this.confirmLatency = confirmLatency;
+	}
+	
+	@CustomMetric(	name = "nackedMessages",
+					kind = Metric.Kind.COUNTER,
+					description = "The number of messages the broker could not take responsibility for (negative publisher confirms).")
+	public void setNackedMessagesMetric(Metric nackedMessages) {
+		this.nackedMessages = nackedMessages;
+	}
+
+	@CustomMetric(	name = "retryQueueDepth",
+					kind = Metric.Kind.GAUGE,
+					description = "The number of messages waiting to be resent.")
+	public void setRetryQueueDepthMetric(Metric retryQueueDepth) {
+		this.retryQueueDepth = retryQueueDepth;
+	}
+	
+	@CustomMetric(	name = "messageSendRetries",
+					kind = Metric.Kind.COUNTER,
+					description = "The number of attempts to resend a message.")
+	public void setMessageSendRetriesMetric(Metric messageSendRetries) {
+		this.messageSendRetries = messageSendRetries;
+	}
+	
+	@CustomMetric(	name = "droppedMessages",
+					kind = Metric.Kind.COUNTER,
+					description = "The number of messages that could not be sent and were dropped.")
+	public void setDroppedMessagesMetric(Metric droppedMessages) {
+		this.droppedMessages = droppedMessages;
+	}
+
+	@CustomMetric(	name = "bytesSpilled",
+					kind = Metric.Kind.COUNTER,
+					description = "The number of bytes of messages written to the spill directory.")
+	public void setBytesSpilledMetric(Metric bytesSpilled) {
+		this.bytesSpilled = bytesSpilled;
+	}
+	
+	@CustomMetric(	name = "spillReplayLag",
+					kind = Metric.Kind.TIME,
+					description = "The age in milliseconds of the oldest stored message that has not been published yet.")
+	public void setSpillReplayLagMetric(Metric spillReplayLag) {
+		this.spillReplayLag = spillReplayLag;
+	}
+
+	@CustomMetric(	name = "compressionRatio",
+					kind = Metric.Kind.GAUGE,
+					description = "The size of all messages sent compressed in percent of their original size. Messages sent uncompressed because they did not get smaller are not included.")
+	public void setCompressionRatioMetric(Metric compressionRatio) {
+		this.compressionRatio = compressionRatio;
+	}
+	
+	@CustomMetric(	name = "compressionTime",
+					kind = Metric.Kind.TIME,
+					description = "The total time in milliseconds spent compressing messages.")
+	public void setCompressionTimeMetric(Metric compressionTime) {
+		this.compressionTime = compressionTime;
+	}
+
+	@CustomMetric(	name = "chunkedMessages",
+					kind = Metric.Kind.COUNTER,
+					description = "The number of messages that were split into chunks.")
+	public void setChunkedMessagesMetric(Metric chunkedMessages) {
+		this.chunkedMessages = chunkedMessages;
+	}
+
+	@CustomMetric(	name = "publishRingOccupancy",
+					kind = Metric.Kind.GAUGE,
+					description = "The number of messages waiting for the publishing thread if asyncPublish is set to true.")
+	public void setPublishRingOccupancyMetric(Metric publishRingOccupancy) {
+		this.publishRingOccupancy = publishRingOccupancy;
+	}
+	
+	@CustomMetric(	name = "handoffLatency",
+					kind = Metric.Kind.GAUGE,
+					description = "The time in microseconds the latest message waited for the publishing thread if asyncPublish is set to true.")
+	public void setHandoffLatencyMetric(Metric handoffLatency) {
+		this.handoffLatency = handoffLatency;
+	}
+
+	@CustomMetric(	name = "blockedBufferDepth",
+					kind = Metric.Kind.GAUGE,
+					description = "The number of messages held in memory while the connection is blocked if blockedPolicy is buffer.")
+	public void setBlockedBufferDepthMetric(Metric blockedBufferDepth) {
+		this.blockedBufferDepth = blockedBufferDepth;
+	}
 
 	@Override
 	public synchronized void shutdown() throws Exception {
+		if (packTimer != null) {
+			packTimer.cancel(false);
+			packTimer = null;
+		}
+		if (packer != null && publishers != null) {
+			packer.flushAll();
+		}
+		if (publishRing != null) {
+			publishRing.awaitEmpty(RING_SHUTDOWN_TIMEOUT);
+			publishRing.close();
+		}
+		if (publishers != null) {
+			releaseBlockedBuffer();
+		}
+		synchronized (blockedBuffer) {
+			if (!blockedBuffer.isEmpty()) {
+				trace.log(TraceLevel.ERROR, "Dropping " + blockedBuffer.size() + " message(s) held while the connection was blocked."); //$NON-NLS-1$ //$NON-NLS-2$
+				droppedMessages.incrementValue(blockedBuffer.size());
+				blockedBuffer.clear();
+				blockedBufferDepth.setValue(0);
+			}
+		}
+		if (retryQueue != null) {
+			retryQueue.close(RETRY_SHUTDOWN_TIMEOUT);
+		}
+		if (spillReplayer != null) {
+			spillReplayer.close();
+			spillLog.close();
+		}
 		super.shutdown(); 
 	}
 	
@@ -169,9 +1178,20 @@ public class RabbitMQSink extends RabbitMQBaseOper {
 			"All exchanges created by this operator are non-durable and auto-delete."  +   //$NON-NLS-1$
 			"This operator supports direct, fanout, and topic exchanges. It does not support header exchanges. " + //$NON-NLS-1$
 			"Messages are non-persistent and sending will only be attempted once by default. " +  //$NON-NLS-1$
+			"If retries are enabled, failed messages are resent in the background with an exponential backoff. " +  //$NON-NLS-1$
+			"To keep messages while the broker is not reachable, specify a spillDirectory. " +  //$NON-NLS-1$
 			"This behavior can be modified using the deliveryMode and maxMessageSendRetries parameters. " +  //$NON-NLS-1$
+			"To have the broker confirm every message, set the publisherConfirms parameter. " +  //$NON-NLS-1$
+			"To publish on a dedicated thread, set the asyncPublish parameter. " +  //$NON-NLS-1$
+			"While the broker blocks the connection because of a resource alarm, the operator waits by default, see the blockedPolicy parameter. " +  //$NON-NLS-1$
+			"Small messages can be packed into one RabbitMQ message for a RabbitMQSource, see the packSize parameter. " +  //$NON-NLS-1$
+			"To publish to the queue shards of a parallel region of RabbitMQSource operators, see the shardCount parameter. " +  //$NON-NLS-1$
+			"Large messages can be compressed, see the compression parameter, and split into chunks, see the chunkSize parameter. " +  //$NON-NLS-1$
 			"\\n\\n**Behavior in a Consistent Region**" +  //$NON-NLS-1$
 			"\\nThis operator can participate in a consistent region. It cannot be the start of a consistent region. " +  //$NON-NLS-1$
+			"In a consistent region, publisher confirms are always enabled, and the operator waits for the broker to confirm all messages " +  //$NON-NLS-1$
+			"before the region is checkpointed. If a message is rejected, dropped, or not confirmed within confirmTimeout, the region is reset, " +  //$NON-NLS-1$
+			"so messages are delivered at least once. " +  //$NON-NLS-1$
 			BASE_DESC
 			;
 }
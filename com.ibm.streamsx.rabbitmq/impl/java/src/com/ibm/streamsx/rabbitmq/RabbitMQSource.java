@@ -16,7 +16,14 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.ibm.streams.operator.OperatorContext;
 import com.ibm.streams.operator.OutputTuple;
@@ -24,14 +31,20 @@ import com.ibm.streams.operator.StreamingOutput;
 import com.ibm.streams.operator.OperatorContext.ContextCheck;
 import com.ibm.streams.operator.compile.OperatorContextChecker;
 import com.ibm.streams.operator.logging.TraceLevel;
+import com.ibm.streams.operator.metrics.Metric;
+import com.ibm.streams.operator.model.CustomMetric;
 import com.ibm.streams.operator.model.OutputPortSet;
 import com.ibm.streams.operator.model.OutputPorts;
 import com.ibm.streams.operator.model.Parameter;
 import com.ibm.streams.operator.model.PrimitiveOperator;
+import com.ibm.streams.operator.state.Checkpoint;
 import com.ibm.streams.operator.state.ConsistentRegionContext;
+import com.ibm.streams.operator.state.StateHandler;
 import com.ibm.streamsx.rabbitmq.i18n.Messages;
+import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Delivery;
 import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Envelope;
 import com.rabbitmq.client.ShutdownSignalException;
@@ -43,7 +56,7 @@ import java.util.logging.Logger;
  */
 @OutputPorts(@OutputPortSet(cardinality = 1, optional = false, description = "Messages received are sent on this output port."))
 @PrimitiveOperator(name = "RabbitMQSource", description = RabbitMQSource.DESC)
-public class RabbitMQSource extends RabbitMQBaseOper {
+public class RabbitMQSource extends RabbitMQBaseOper implements StateHandler {
 
 	private List<String> routingKeys = new ArrayList<String>();
 	
@@ -53,14 +66,86 @@ public class RabbitMQSource extends RabbitMQBaseOper {
 	private String queueName = ""; //$NON-NLS-1$
 
 	private String queueNameParameter = ""; //$NON-NLS-1$
+	private boolean shardQueues = false;
+	
+	private static final String ACK_MODE_AUTO = "auto"; //$NON-NLS-1$
+	private static final String ACK_MODE_MANUAL = "manual"; //$NON-NLS-1$
+	
+	private String ackMode = ACK_MODE_AUTO;
+	private int ackBatchSize = 100;
+	private long ackInterval = 1000;
+	private ScheduledFuture<?> ackTimer = null;
+	
+	private static final long DELIVERY_RATE_INTERVAL = 1000;
+	
+	private int consumerCount = 1;
+	private List<String> consumerQueues = new ArrayList<String>();
+	// replaced as a whole whenever consuming is started again
+	private volatile QueueConsumer[] consumers = new QueueConsumer[0];
+	private Metric[] consumerDeliveries;
+	private Metric[] consumerDeliveryRates;
+	private ScheduledFuture<?> deliveryRateTimer = null;
+	
+	private static final long SUBMITTER_POLL_INTERVAL = 100;
+	
+	private int submitBufferSize = 0;
+	private int submitBufferLowWater = -1;
+	private int resumeLevel = 0;
+	private final AtomicInteger bufferedDeliveries = new AtomicInteger();
+	private final AtomicLong pausedNanos = new AtomicLong();
+	private Metric submitBufferDepth;
+	private Metric consumerPauses;
+	private Metric pausedTime;
+	
+	private static final long PREFETCH_ADJUST_INTERVAL = 1000;
+	
+	private int prefetchCount = 0;
+	private long prefetchBytes = 0;
+	private boolean adaptivePrefetch = false;
+	private double adaptivePrefetchLatency = 1.0;
+	private int minPrefetchCount = 0;
+	private ScheduledFuture<?> prefetchTimer = null;
+	private Metric prefetchCountMetric;
+	private Metric decompressionTime;
+	
+	private long chunkBufferSize = 64 * 1024 * 1024;
+	private long chunkTimeout = 60000;
+	private boolean decompress = false;
+	private int maxDecompressedSize = 64 * 1024 * 1024;
+	private ChunkAssembler chunkAssembler = null;
+	private ScheduledFuture<?> chunkTimer = null;
+	private Metric chunkBufferBytes;
+	private Metric evictedChunkedMessages;
+	private final AtomicLong decompressionNanos = new AtomicLong();
+	
+	private ConsistentRegionContext crContext = null;
+	
+	@ContextCheck(compile = false)
+	public static void checkSourceParameters(OperatorContextChecker checker) {
+		checkParameterValue(checker, "ackMode", ACK_MODE_AUTO, ACK_MODE_MANUAL); //$NON-NLS-1$
+		checkPositiveParameter(checker, "ackBatchSize"); //$NON-NLS-1$
+		checkPositiveParameter(checker, "ackInterval"); //$NON-NLS-1$
+		checkPositiveParameter(checker, "prefetchCount"); //$NON-NLS-1$
+		checkPositiveParameter(checker, "prefetchBytes"); //$NON-NLS-1$
+		checkPositiveParameter(checker, "adaptivePrefetchLatency"); //$NON-NLS-1$
+		checkPositiveParameter(checker, "minPrefetchCount"); //$NON-NLS-1$
+		checkPositiveParameter(checker, "chunkBufferSize"); //$NON-NLS-1$
+		checkPositiveParameter(checker, "chunkTimeout"); //$NON-NLS-1$
+		checkPositiveParameter(checker, "maxDecompressedSize"); //$NON-NLS-1$
+		checkPositiveParameter(checker, "consumerCount"); //$NON-NLS-1$
+		checkPositiveParameter(checker, "submitBufferSize"); //$NON-NLS-1$
+		// a delivery waiting for room in the buffer would hold up a thread of the shared pool
+		checker.checkExcludedParameters("consumerThreads", "submitBufferSize"); //$NON-NLS-1$ //$NON-NLS-2$
+		checker.checkDependentParameters("shardQueues", "queueName"); //$NON-NLS-1$ //$NON-NLS-2$
+	}
 	
 	//consistent region checks
 	@ContextCheck(compile = true)
 	public static void checkInConsistentRegion(OperatorContextChecker checker) {
 		ConsistentRegionContext consistentRegionContext = 
 				checker.getOperatorContext().getOptionalContext(ConsistentRegionContext.class);
-		if (consistentRegionContext != null){
-			checker.setInvalidContext(Messages.getString("OP_CANNOT_BE_START_OF_CONSISTENT_REGION"), null); //$NON-NLS-1$
+		if (consistentRegionContext != null && consistentRegionContext.isTriggerOperator()){
+			checker.setInvalidContext(Messages.getString("OP_CANNOT_BE_TRIGGER_OF_CONSISTENT_REGION"), null); //$NON-NLS-1$
 		}
 	}
 	
@@ -77,11 +162,82 @@ public class RabbitMQSource extends RabbitMQBaseOper {
 		// produce tuples returns immediately, but we don't want ports to close
 		createAvoidCompletionThread();
 
+		crContext = context.getOptionalContext(ConsistentRegionContext.class);
+		if (crContext != null) {
+			trace.log(TraceLevel.INFO, "Operator is the start of a consistent region, messages are acknowledged " //$NON-NLS-1$
+					+ "when a checkpoint is complete and the ackMode parameter is ignored."); //$NON-NLS-1$
+			if (adaptivePrefetch) {
+				// the unacknowledged messages only go down once per checkpoint, whatever the submit latency
+				trace.log(TraceLevel.WARN, "adaptivePrefetch is ignored in a consistent region."); //$NON-NLS-1$
+				adaptivePrefetch = false;
+			}
+			if (getConsumerThreads() > 0) {
+				// deliveries wait for the permit while the region is drained or reset,
+				// which would hold up the consumers of other operators on the shared pool
+				trace.log(TraceLevel.WARN, "consumerThreads is ignored in a consistent region."); //$NON-NLS-1$
+				setConsumerThreads(0);
+			}
+		}
+
+		if (shardQueues) {
+			initializeShard(context.getChannel());
+		}
+
+		chunkAssembler = new ChunkAssembler(chunkBufferSize, chunkTimeout, chunkBufferBytes, evictedChunkedMessages);
+
+		if (submitBufferSize > 0) {
+			// resume below the high-water mark, or we would pause again right away
+			int lowWater = submitBufferLowWater < 0 ? submitBufferSize / 2 : submitBufferLowWater;
+			resumeLevel = Math.min(lowWater, submitBufferSize - 1);
+		}
+
+		// one consumer per queue at least
+		consumerCount = Math.max(consumerCount, 1 + consumerQueues.size());
+		consumerDeliveries = new Metric[consumerCount];
+		consumerDeliveryRates = new Metric[consumerCount];
+		for (int i = 0; i < consumerCount; i++) {
+			consumerDeliveries[i] = context.getMetrics().createCustomMetric("consumer" + i + "Deliveries", //$NON-NLS-1$ //$NON-NLS-2$
+					"The number of messages delivered to consumer " + i + ".", Metric.Kind.COUNTER); //$NON-NLS-1$ //$NON-NLS-2$
+			consumerDeliveryRates[i] = context.getMetrics().createCustomMetric("consumer" + i + "DeliveryRate", //$NON-NLS-1$ //$NON-NLS-2$
+					"The number of messages per second delivered to consumer " + i + ".", Metric.Kind.GAUGE); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+
+		if (isPrefetchLimited() && isAutoAck()) {
+			trace.log(TraceLevel.WARN, "The broker ignores prefetch limits for automatically acknowledged messages. " //$NON-NLS-1$
+					+ "Set ackMode to \"manual\" to limit the number of messages in flight."); //$NON-NLS-1$
+		}
+
 		processThread = getNewConsumerThread();
 
 		processThread.setDaemon(false);
 	}
 
+	/*
+	 * Each channel of a parallel region consumes its own queue, so that the 
+	 * load is spread over several queues of the broker. A queue created by this 
+	 * operator is bound to the shard routing keys that a RabbitMQSink with 
+	 * shardCount publishes to. Queues bound to a consistent-hash exchange only 
+	 * need a weight, the exchange spreads the messages itself.
+	 */
+	private void initializeShard(int shard) {
+		if (shard < 0) {
+			trace.log(TraceLevel.WARN, "The operator is not in a parallel region, therefore the queue is not sharded."); //$NON-NLS-1$
+			return;
+		}
+		queueNameParameter = queueNameParameter + "-" + shard; //$NON-NLS-1$
+		if (!CONSISTENT_HASH_EXCHANGE.equals(exchangeType)) {
+			List<String> keys = new ArrayList<String>(routingKeys);
+			if (keys.isEmpty()) {
+				keys.add(""); //$NON-NLS-1$
+			}
+			routingKeys.clear();
+			for (String key : keys) {
+				routingKeys.add(getShardRoutingKey(key, shard));
+			}
+		}
+		trace.log(TraceLevel.INFO, "Consuming shard " + shard + " from queue: " + queueNameParameter); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
 	private Thread getNewConsumerThread() {
 		return getOperatorContext().getThreadFactory().newThread(
 				new Runnable() {
@@ -121,8 +277,10 @@ public class RabbitMQSource extends RabbitMQBaseOper {
 		// Only want to bind to routing keys or exchanges if we created the queue
 		// We don't want to modify routing keys of existing queues. 
 		if (createdQueue){
-			if (routingKeys.isEmpty())
-				routingKeys.add("");//add a blank routing key //$NON-NLS-1$
+			if (routingKeys.isEmpty()) {
+				// a consistent-hash exchange takes the weight of the queue instead
+				routingKeys.add(CONSISTENT_HASH_EXCHANGE.equals(exchangeType) ? CONSISTENT_HASH_WEIGHT : "");//add a blank routing key //$NON-NLS-1$
+			}
 
 			//You can't bind to a default exchange
 			if (!usingDefaultExchange){
@@ -155,7 +313,7 @@ public class RabbitMQSource extends RabbitMQBaseOper {
 				trace.log(TraceLevel.INFO, "Queue was found, therefore no queue will be declared and user queue configurations will be ignored."); //$NON-NLS-1$
 				createdQueue = false;
 			} catch (IOException e) {
-				channel = connection.createChannel();
+				channel = createChannel(connection);
 				channel.queueDeclare(queueName, false, false, true, null);
 				trace.log(TraceLevel.INFO, "Queue was not found, therefore non-durable, auto-delete queue will be declared."); //$NON-NLS-1$
 			}
@@ -178,8 +336,49 @@ public class RabbitMQSource extends RabbitMQBaseOper {
 		super.initializeRabbitChannelAndConnection();		
 		bindAndSetupQueue();
 		
-		DefaultConsumer consumer = getNewDefaultConsumer();
-		channel.basicConsume(queueName, true, consumer);
+		startConsuming();
+		
+		if (isManualAck()) {
+			ackTimer = getOperatorContext().getScheduledExecutorService().scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					for (QueueConsumer consumer : consumers) {
+						consumer.ackBatcher.flush();
+					}
+				}
+			}, ackInterval, ackInterval, TimeUnit.MILLISECONDS);
+		}
+		
+		if (adaptivePrefetch || prefetchBytes > 0) {
+			prefetchTimer = getOperatorContext().getScheduledExecutorService().scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					for (QueueConsumer consumer : consumers) {
+						consumer.prefetchController.adjust();
+					}
+				}
+			}, PREFETCH_ADJUST_INTERVAL, PREFETCH_ADJUST_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+		
+		deliveryRateTimer = getOperatorContext().getScheduledExecutorService().scheduleAtFixedRate(new Runnable() {
+			private final long[] previous = new long[consumerCount];
+			
+			@Override
+			public void run() {
+				for (int i = 0; i < consumerCount; i++) {
+					long deliveries = consumerDeliveries[i].getValue();
+					consumerDeliveryRates[i].setValue((deliveries - previous[i]) * 1000 / DELIVERY_RATE_INTERVAL);
+					previous[i] = deliveries;
+				}
+			}
+		}, DELIVERY_RATE_INTERVAL, DELIVERY_RATE_INTERVAL, TimeUnit.MILLISECONDS);
+		
+		chunkTimer = getOperatorContext().getScheduledExecutorService().scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				chunkAssembler.evictExpired();
+			}
+		}, chunkTimeout, chunkTimeout, TimeUnit.MILLISECONDS);
 		
 		while (!Thread.interrupted()){
 			// Wait for a possible change of the 'isConnected' metric
@@ -190,12 +389,58 @@ public class RabbitMQSource extends RabbitMQBaseOper {
 			if (isConnected.getValue() != 1 && newCredentialsExist()) {
 				trace.log(TraceLevel.WARN, "New properties have been found so the client is restarting."); //$NON-NLS-1$
 				resetRabbitClient();
-				consumer = getNewDefaultConsumer();
-				channel.basicConsume(queueName, true, consumer);
+				startConsuming();
 			}
 		}
 	}
 	
+	/*
+	 * Register consumerCount consumers, the first on the current channel and 
+	 * the others on channels of their own, so that their deliveries are 
+	 * dispatched and submitted concurrently. In manual ack mode, deliveries 
+	 * are acknowledged in batches after they have been submitted.
+	 */
+	private void startConsuming() throws IOException {
+		if (!isAutoAck()) {
+			// chunks we have not acknowledged are delivered again
+			chunkAssembler.clear();
+		}
+		QueueConsumer[] replaced = consumers;
+		QueueConsumer[] started = new QueueConsumer[consumerCount];
+		for (int i = 0; i < consumerCount; i++) {
+			Channel consumerChannel = i == 0 ? channel : createChannel(connection);
+			started[i] = new QueueConsumer(i, consumerChannel);
+		}
+		consumers = started;
+		for (QueueConsumer consumer : replaced) {
+			consumer.stop();
+		}
+		for (QueueConsumer consumer : started) {
+			consumer.start();
+		}
+	}
+	
+	/*
+	 * The consumers take turns on the queue of the queueName parameter 
+	 * and the queues of the consumerQueues parameter.
+	 */
+	private String getConsumerQueue(int index) {
+		int queue = index % (1 + consumerQueues.size());
+		return queue == 0 ? queueName : consumerQueues.get(queue - 1);
+	}
+	
+	private boolean isAutoAck() {
+		return crContext == null && ACK_MODE_AUTO.equals(ackMode);
+	}
+	
+	private boolean isManualAck() {
+		return crContext == null && ACK_MODE_MANUAL.equals(ackMode);
+	}
+	
+	private boolean isPrefetchLimited() {
+		return prefetchCount > 0 || prefetchBytes > 0 || adaptivePrefetch;
+	}
+	
 	@Override
 	public void resetRabbitClient() throws KeyManagementException, MalformedURLException, NoSuchAlgorithmException,
 			URISyntaxException, IOException, TimeoutException, InterruptedException, Exception {
@@ -205,68 +450,577 @@ public class RabbitMQSource extends RabbitMQBaseOper {
 		} 
 	}
 
-	private DefaultConsumer getNewDefaultConsumer() {
-		return new DefaultConsumer(channel) {
-			@Override
-			public void handleDelivery(	String consumerTag,
-										Envelope envelope,
-										AMQP.BasicProperties properties,
-										byte[] body)
-					throws IOException
-			{
-				if (isConnected.getValue() == 0) {
-					// We know we are connected if we're sending messages
-					setIsConnectedValue(1);
+	/*
+	 * If enabled, decompress the body if its content encoding has a codec. 
+	 * Anything else, like a character encoding, is left to the application.
+	 */
+	private byte[] decode(AMQP.BasicProperties properties, byte[] body) {
+		String encoding = properties.getContentEncoding();
+		if (!decompress || encoding == null) {
+			return body;
+		}
+		PayloadCodec codec = PayloadCodecs.get(encoding);
+		if (codec == null) {
+			return body;
+		}
+		long start = System.nanoTime();
+		try {
+			byte[] decoded = codec.decode(body, maxDecompressedSize);
+			decompressionTime.setValue(TimeUnit.NANOSECONDS.toMillis(decompressionNanos.addAndGet(System.nanoTime() - start)));
+			return decoded;
+		} catch (IOException e) {
+			trace.log(TraceLevel.ERROR, "Submitting message as is, it cannot be decoded from " + encoding + ": " + e.getMessage()); //$NON-NLS-1$ //$NON-NLS-2$
+			return body;
+		}
+	}
+
+	/**
+	 * Consumes one queue on its own channel. The acknowledgement and prefetch
+	 * state, and in a consistent region the checkpointed delivery tags, belong
+	 * to the channel, so each consumer keeps its own.
+	 */
+	private class QueueConsumer extends DefaultConsumer implements Runnable {
+		private final int index;
+		private final String queue;
+		private final AckBatcher ackBatcher;
+		private final PrefetchController prefetchController;
+		
+		// deliveries waiting for the submitter thread, null if submitted on delivery
+		private final LinkedBlockingQueue<Delivery> buffer;
+		private Thread submitter = null;
+		private volatile boolean stopped = false;
+		private long pausedSince = 0;
+		
+		// In a consistent region, deliveries are acknowledged once a checkpoint
+		// covering them is complete. Guarded by checkpointTags.
+		private long latestSubmittedTag = 0;
+		private long lastAckedTag = 0;
+		private final TreeMap<Long, Long> checkpointTags = new TreeMap<Long, Long>();
+		// chunks of incomplete messages, a checkpoint covers none of them or later deliveries
+		private final TreeSet<Long> heldTags = new TreeSet<Long>();
+		
+		QueueConsumer(int index, Channel channel) {
+			super(channel);
+			this.index = index;
+			this.queue = getConsumerQueue(index);
+			this.ackBatcher = isManualAck() ? new AckBatcher(channel, ackBatchSize) : null;
+			if (isPrefetchLimited()) {
+				// shrinking below the ack batch size would leave acks to the timer
+				int minPrefetch = minPrefetchCount > 0 ? minPrefetchCount : (isManualAck() ? ackBatchSize : 1);
+				prefetchController = new PrefetchController(channel, minPrefetch, prefetchCount, prefetchBytes,
+						adaptivePrefetch, (long) (adaptivePrefetchLatency * 1000000), prefetchCountMetric);
+			} else {
+				prefetchController = null;
+			}
+			buffer = submitBufferSize > 0 ? new LinkedBlockingQueue<Delivery>(submitBufferSize) : null;
+		}
+		
+		void start() throws IOException {
+			if (prefetchController != null) {
+				prefetchController.start(adaptivePrefetch ? 0 : prefetchCount);
+			}
+			if (buffer != null) {
+				submitter = getOperatorContext().getThreadFactory().newThread(this);
+				submitter.setDaemon(true);
+				submitter.start();
+			}
+			getChannel().basicConsume(queue, isAutoAck(), this);
+			trace.log(TraceLevel.INFO, "Consumer " + index + " consuming from queue: " + queue); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		
+		@Override
+		public void handleDelivery(	String consumerTag,
+									Envelope envelope,
+									AMQP.BasicProperties properties,
+									byte[] body)
+				throws IOException
+		{
+			if (isConnected.getValue() == 0) {
+				// We know we are connected if we're sending messages
+				setIsConnectedValue(1);
+			}
+			if (buffer == null) {
+				submitDelivery(envelope, properties, body);
+				return;
+			}
+			Delivery delivery = new Delivery(envelope, properties, body);
+			try {
+				// The messages that were on their way when we paused, or all
+				// messages in ackMode auto, wait here until there is room
+				while (!buffer.offer(delivery, SUBMITTER_POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+					if (stopped) {
+						// replaced, the broker delivers it again unless in ackMode auto
+						return;
+					}
 				}
-				StreamingOutput<OutputTuple> out = getOutput(0);
-				OutputTuple tuple = out.newTuple();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			submitBufferDepth.setValue(bufferedDeliveries.incrementAndGet());
+			if (buffer.remainingCapacity() == 0) {
+				pause();
+			}
+		}
+		
+		/*
+		 * Submits the buffered deliveries, so that a slow downstream does not
+		 * hold up the dispatch thread of the client.
+		 */
+		@Override
+		public void run() {
+			try {
+				while (!stopped || !buffer.isEmpty()) {
+					Delivery delivery = buffer.poll(SUBMITTER_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+					if (delivery == null) {
+						continue;
+					}
+					submitBufferDepth.setValue(bufferedDeliveries.decrementAndGet());
+					try {
+						submitDelivery(delivery.getEnvelope(), delivery.getProperties(), delivery.getBody());
+					} catch (IOException | RuntimeException e) {
+						trace.log(TraceLevel.ERROR, "Exception message:" + e.getMessage()); //$NON-NLS-1$
+					}
+					if (buffer.size() <= resumeLevel) {
+						resume();
+					}
+				}
+			} catch (InterruptedException e) {
+				// operator is shutting down
+			}
+		}
+		
+		/*
+		 * Stop the broker from sending more messages to this consumer by 
+		 * lowering the prefetch count of the channel to one message, which the
+		 * buffered messages exceed until they have been acknowledged. The
+		 * consumer is not cancelled, because the broker would delete an
+		 * auto-delete queue with its last consumer. In ackMode auto the broker
+		 * ignores the prefetch count, so only the full buffer holds up the
+		 * thread that receives the messages.
+		 */
+		private synchronized void pause() {
+			if (pausedSince != 0 || stopped || isAutoAck()) {
+				return;
+			}
+			try {
+				// chunks of incomplete messages stay unacknowledged while we are paused
+				int held = getHeldChunkCount();
+				if (prefetchController != null) {
+					prefetchController.pause(held);
+				} else {
+					getChannel().basicQos(Math.max(1, held), true);
+				}
+				pausedSince = System.nanoTime();
+				consumerPauses.increment();
+				if (trace.isLoggable(TraceLevel.DEBUG))
+					trace.log(TraceLevel.DEBUG, "Consumer " + index + " paused with " + buffer.size() + " message(s) buffered"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			} catch (IOException | RuntimeException e) {
+				trace.log(TraceLevel.WARN, "Failed to pause consumer " + index + ": " + e.getMessage()); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+		}
+		
+		private synchronized void resume() {
+			if (pausedSince == 0 || stopped) {
+				return;
+			}
+			try {
+				if (prefetchController != null) {
+					prefetchController.resume();
+				} else {
+					// unlimited
+					getChannel().basicQos(0, true);
+				}
+				pausedTime.setValue(TimeUnit.NANOSECONDS.toMillis(pausedNanos.addAndGet(System.nanoTime() - pausedSince)));
+				pausedSince = 0;
+				if (trace.isLoggable(TraceLevel.DEBUG))
+					trace.log(TraceLevel.DEBUG, "Consumer " + index + " resumed"); //$NON-NLS-1$ //$NON-NLS-2$
+			} catch (IOException | RuntimeException e) {
+				// tried again after the next submit
+				trace.log(TraceLevel.WARN, "Failed to resume consumer " + index + ": " + e.getMessage()); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+		}
+		
+		/*
+		 * Called when this consumer has been replaced. The submitter finishes
+		 * the buffered deliveries, unless a consistent region reset has the 
+		 * broker deliver them again.
+		 */
+		void stop() {
+			stopped = true;
+			if (buffer != null && crContext != null) {
+				List<Delivery> discarded = new ArrayList<Delivery>();
+				buffer.drainTo(discarded);
+				submitBufferDepth.setValue(bufferedDeliveries.addAndGet(-discarded.size()));
+			}
+		}
+		
+		void interrupt() {
+			stopped = true;
+			if (submitter != null) {
+				submitter.interrupt();
+			}
+		}
+		
+		private void submitDelivery(Envelope envelope, AMQP.BasicProperties properties, byte[] body)
+				throws IOException
+		{
+			StreamingOutput<OutputTuple> out = getOutput(0);
 
-				messageAH.setValue(tuple, body);
-				
-				if (routingKeyAH.isAvailable()) {
-					tuple.setString(routingKeyAH.getName(),
-							envelope.getRoutingKey());
-					if (trace.isLoggable(TraceLevel.DEBUG))
-						trace.log(TraceLevel.DEBUG, routingKeyAH.getName() + ":" //$NON-NLS-1$
-								+ envelope.getRoutingKey());
-				} 				
+			// In a consistent region, no tuples are submitted while the region is drained or reset
+			if (crContext != null) {
+				try {
+					crContext.acquirePermit();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+			try {
+				// A reset has replaced this consumer, the broker delivers this message again
+				if (crContext != null && consumers[index] != this) {
+					return;
+				}
+				consumerDeliveries[index].increment();
 				
-				if (messageHeaderAH.isAvailable()){
-					Map<String, Object> msgHeader = properties.getHeaders();
-					if (msgHeader != null && !msgHeader.isEmpty()){
-						Map<String, String> headers = new HashMap<String,String>();
-						Iterator<Entry<String,Object>> it = msgHeader.entrySet().iterator();
-						while (it.hasNext()){
-							Map.Entry<String, Object> pair = it.next();
-							if (trace.isLoggable(TraceLevel.DEBUG))
-								trace.log(TraceLevel.DEBUG, "Header: " + pair.getKey() + ":" + pair.getValue().toString()); //$NON-NLS-1$ //$NON-NLS-2$
-							headers.put(pair.getKey(), pair.getValue().toString());
+				// A RabbitMQSink may have split a large message into chunks
+				List<ChunkAssembler.ChunkDelivery> chunkDeliveries = null;
+				if (ChunkAssembler.isChunk(properties)) {
+					final long deliveryTag = envelope.getDeliveryTag();
+					holdChunk(deliveryTag);
+					try {
+						if (!fitsPrefetch(properties)) {
+							discardChunk(deliveryTag);
+							return;
+						}
+						ChunkAssembler.AssembledMessage assembled = chunkAssembler.add(properties, body,
+								new ChunkAssembler.ChunkDelivery() {
+									@Override
+									public void settle(boolean processed) {
+										settleChunk(deliveryTag, processed);
+									}
+									
+									@Override
+									public void discard() {
+										discardChunk(deliveryTag);
+									}
+								});
+						if (assembled == null) {
+							// held until its message is complete or evicted
+							return;
 						}
-						tuple.setMap(messageHeaderAH.getName(), headers);
+						chunkDeliveries = assembled.deliveries;
+						properties = assembled.props;
+						body = assembled.message;
+					} catch (NumberFormatException e) {
+						trace.log(TraceLevel.ERROR, "Submitting chunk as is: " + e.getMessage()); //$NON-NLS-1$
+						releaseChunk(deliveryTag, false);
 					}
 				}
-
+				
+				byte[] payload = decode(properties, body);
+				
+				// A RabbitMQSink may have packed the messages of several tuples
+				List<byte[]> messages = null;
+				if (MessagePacker.PACKED_CONTENT_TYPE.equals(properties.getContentType())) {
+					try {
+						messages = MessagePacker.unpack(payload);
+					} catch (IOException e) {
+						trace.log(TraceLevel.ERROR, "Submitting packed message as is: " + e.getMessage()); //$NON-NLS-1$
+					}
+				}
+				
 				// Submit tuple to output stream
+				PrefetchController controller = prefetchController;
+				boolean measure = controller != null && controller.isDynamic();
+				long submitStart = measure ? System.nanoTime() : 0;
 				try {
-					out.submit(tuple);
+					if (messages == null) {
+						out.submit(newTuple(out, envelope, properties, payload));
+					} else {
+						for (byte[] message : messages) {
+							out.submit(newTuple(out, envelope, properties, message));
+						}
+					}
+					if (measure) {
+						controller.recordDelivery(body.length, System.nanoTime() - submitStart);
+					}
 				} catch (Exception e) {
 					trace.log(TraceLevel.ERROR, "Catching submit exception" + e.getMessage()); //$NON-NLS-1$
 					e.printStackTrace();
+					if (chunkDeliveries != null) {
+						// have the broker deliver all chunks again
+						for (ChunkAssembler.ChunkDelivery chunkDelivery : chunkDeliveries) {
+							chunkDelivery.settle(false);
+						}
+					} else if (!isAutoAck()) {
+						// have the broker deliver it again
+						getChannel().basicReject(envelope.getDeliveryTag(), true);
+					}
+					return;
+				}
+				
+				if (chunkDeliveries != null) {
+					for (ChunkAssembler.ChunkDelivery chunkDelivery : chunkDeliveries) {
+						chunkDelivery.settle(true);
+					}
+				} else if (isManualAck()) {
+					ackBatcher.delivered(envelope.getDeliveryTag());
+				} else if (crContext != null) {
+					synchronized (checkpointTags) {
+						latestSubmittedTag = Math.max(latestSubmittedTag, envelope.getDeliveryTag());
+					}
+				}
+			} finally {
+				if (crContext != null) {
+					crContext.releasePermit();
 				}
 			}
-			
-			@Override
-			public void handleCancelOk(String consumerTag) {
-				trace.log(TraceLevel.INFO,"Recieved cancel signal at consumer"); //$NON-NLS-1$
-				super.handleCancelOk(consumerTag);
+		}
+		
+		/*
+		 * A chunk must not be acknowledged, by itself or by a later multiple
+		 * acknowledgement, before its message has been submitted or evicted, 
+		 * or the message could never be completed after a failure.
+		 */
+		private void holdChunk(long deliveryTag) {
+			if (ackBatcher != null) {
+				ackBatcher.hold(deliveryTag);
+			} else if (crContext != null) {
+				synchronized (checkpointTags) {
+					heldTags.add(deliveryTag);
+				}
+			}
+		}
+		
+		private void releaseChunk(long deliveryTag, boolean processed) {
+			if (ackBatcher != null) {
+				ackBatcher.release(deliveryTag, processed);
+			} else if (crContext != null) {
+				synchronized (checkpointTags) {
+					heldTags.remove(deliveryTag);
+					if (processed) {
+						latestSubmittedTag = Math.max(latestSubmittedTag, deliveryTag);
+					}
+				}
+			}
+		}
+		
+		/*
+		 * May be called on the thread of another consumer that completed the
+		 * message, or by the timer that evicts incomplete messages.
+		 */
+		private void settleChunk(long deliveryTag, boolean processed) {
+			if (isAutoAck()) {
+				return;
+			}
+			if (!processed) {
+				try {
+					getChannel().basicReject(deliveryTag, true);
+				} catch (IOException | RuntimeException e) {
+					// The broker delivers it again once the channel is gone
+					trace.log(TraceLevel.WARN, "Failed to reject chunk: " + e.getMessage()); //$NON-NLS-1$
+				}
 			}
+			releaseChunk(deliveryTag, processed);
+		}
+		
+		/*
+		 * An evicted message is not delivered again, it would only be evicted
+		 * again. Rejecting its chunks lets the broker dead-letter them.
+		 */
+		private void discardChunk(long deliveryTag) {
+			if (isAutoAck()) {
+				return;
+			}
+			try {
+				getChannel().basicReject(deliveryTag, false);
+			} catch (IOException | RuntimeException e) {
+				// The broker delivers it again once the channel is gone
+				trace.log(TraceLevel.WARN, "Failed to reject chunk: " + e.getMessage()); //$NON-NLS-1$
+			}
+			releaseChunk(deliveryTag, false);
+		}
+		
+		private int getHeldChunkCount() {
+			if (ackBatcher != null) {
+				return ackBatcher.getHeldCount();
+			}
+			synchronized (checkpointTags) {
+				return heldTags.size();
+			}
+		}
+		
+		/*
+		 * All chunks of a message are unacknowledged until it is complete, so 
+		 * the broker only delivers a message with more chunks than the prefetch
+		 * count once the prefetch count has grown. A message with more chunks 
+		 * than the highest prefetch count can never be completed.
+		 * @return false if the message can never be completed.
+		 */
+		private boolean fitsPrefetch(AMQP.BasicProperties properties) {
+			PrefetchController controller = prefetchController;
+			if (controller == null || isAutoAck()) {
+				return true;
+			}
+			int count = ChunkAssembler.getChunkCount(properties);
+			int current = controller.getCurrentCount();
+			if (current == 0 || count <= current) {
+				return true;
+			}
+			// warn once per message
+			boolean first = "0".equals(properties.getHeaders().get(ChunkAssembler.CHUNK_INDEX).toString()); //$NON-NLS-1$
+			if (count > controller.getMaxCount()) {
+				if (first) {
+					trace.log(TraceLevel.WARN, "Dropping chunked message of " + count + " chunks, consumer " + index //$NON-NLS-1$ //$NON-NLS-2$
+							+ " cannot hold more than " + controller.getMaxCount() + " unacknowledged messages. Increase prefetchCount."); //$NON-NLS-1$ //$NON-NLS-2$
+					evictedChunkedMessages.increment();
+				}
+				return false;
+			}
+			if (first) {
+				trace.log(TraceLevel.WARN, "Chunked message of " + count + " chunks exceeds the prefetch count " + current //$NON-NLS-1$ //$NON-NLS-2$
+						+ " of consumer " + index + ", it is completed once the prefetch count has grown."); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+			return true;
+		}
+		
+		private OutputTuple newTuple(StreamingOutput<OutputTuple> out, Envelope envelope,
+				AMQP.BasicProperties properties, byte[] message) {
+			OutputTuple tuple = out.newTuple();
+
+			messageAH.setValue(tuple, message);
 			
-			@Override
-			public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
-				trace.log(TraceLevel.INFO,"Recieved shutdown signal at consumer"); //$NON-NLS-1$
-				super.handleShutdownSignal(consumerTag, sig);
+			if (routingKeyAH.isAvailable()) {
+				tuple.setString(routingKeyAH.getIndex(),
+						envelope.getRoutingKey());
+				if (trace.isLoggable(TraceLevel.DEBUG))
+					trace.log(TraceLevel.DEBUG, routingKeyAH.getName() + ":" //$NON-NLS-1$
+							+ envelope.getRoutingKey());
+			} 				
+			
+			if (messageHeaderAH.isAvailable()){
+				Map<String, Object> msgHeader = properties.getHeaders();
+				if (msgHeader != null && !msgHeader.isEmpty()){
+					Map<String, String> headers = new HashMap<String,String>();
+					Iterator<Entry<String,Object>> it = msgHeader.entrySet().iterator();
+					while (it.hasNext()){
+						Map.Entry<String, Object> pair = it.next();
+						if (trace.isLoggable(TraceLevel.DEBUG))
+							trace.log(TraceLevel.DEBUG, "Header: " + pair.getKey() + ":" + pair.getValue().toString()); //$NON-NLS-1$ //$NON-NLS-2$
+						headers.put(pair.getKey(), pair.getValue().toString());
+					}
+					tuple.setMap(messageHeaderAH.getIndex(), headers);
+				}
+			}
+			return tuple;
+		}
+		
+		@Override
+		public void handleCancelOk(String consumerTag) {
+			trace.log(TraceLevel.INFO,"Recieved cancel signal at consumer"); //$NON-NLS-1$
+			super.handleCancelOk(consumerTag);
+		}
+		
+		@Override
+		public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+			trace.log(TraceLevel.INFO,"Recieved shutdown signal at consumer"); //$NON-NLS-1$
+			super.handleShutdownSignal(consumerTag, sig);
+		}
+		
+		void checkpoint(long id) {
+			synchronized (checkpointTags) {
+				long deliveryTag = heldTags.isEmpty() ? latestSubmittedTag : Math.min(latestSubmittedTag, heldTags.first() - 1);
+				checkpointTags.put(id, deliveryTag);
+			}
+		}
+		
+		void retireCheckpoint(long id) {
+			synchronized (checkpointTags) {
+				Map.Entry<Long, Long> completed = checkpointTags.higherEntry(id);
+				if (completed == null) {
+					return;
+				}
+				checkpointTags.headMap(completed.getKey(), false).clear();
+				
+				long deliveryTag = completed.getValue();
+				if (deliveryTag > lastAckedTag) {
+					try {
+						getChannel().basicAck(deliveryTag, true);
+						lastAckedTag = deliveryTag;
+						if (trace.isLoggable(TraceLevel.DEBUG))
+							trace.log(TraceLevel.DEBUG, "Consumer " + index + " acknowledged messages up to delivery tag " + deliveryTag //$NON-NLS-1$ //$NON-NLS-2$
+									+ " for checkpoint " + completed.getKey()); //$NON-NLS-1$
+					} catch (IOException | RuntimeException e) {
+						// The broker delivers them again once the channel is gone
+						trace.log(TraceLevel.WARN, "Failed to acknowledge messages: " + e.getMessage()); //$NON-NLS-1$
+					}
+				}
+			}
+		}
+	}
+	
+	@Override
+	public void drain() throws Exception {
+		// the permit keeps the consumer from submitting while we are drained
+	}
+	
+	@Override
+	public void checkpoint(Checkpoint checkpoint) throws Exception {
+		for (QueueConsumer consumer : consumers) {
+			consumer.checkpoint(checkpoint.getSequenceId());
+		}
+	}
+	
+	/*
+	 * A checkpoint is retired once a later checkpoint of the region is complete.
+	 * The deliveries covered by that checkpoint can now be acknowledged.
+	 */
+	@Override
+	public void retireCheckpoint(long id) throws Exception {
+		for (QueueConsumer consumer : consumers) {
+			consumer.retireCheckpoint(id);
+		}
+	}
+	
+	@Override
+	public void reset(Checkpoint checkpoint) throws Exception {
+		trace.log(TraceLevel.INFO, "Reset to checkpoint " + checkpoint.getSequenceId()); //$NON-NLS-1$
+		redeliverUnacknowledged();
+	}
+	
+	@Override
+	public void resetToInitialState() throws Exception {
+		trace.log(TraceLevel.INFO, "Reset to initial state"); //$NON-NLS-1$
+		redeliverUnacknowledged();
+	}
+	
+	@Override
+	public void close() throws IOException {
+	}
+	
+	/*
+	 * Have the broker requeue every message we have not acknowledged yet. 
+	 * Deliveries already buffered by the old consumers are dropped because 
+	 * they are on the old channels. The new consumers are registered before 
+	 * the old channels are closed, so that an auto-delete queue is not deleted.
+	 */
+	private void redeliverUnacknowledged() throws Exception {
+		QueueConsumer[] oldConsumers = consumers;
+		if (oldConsumers.length == 0 || connection == null) {
+			// not connected yet
+			return;
+		}
+		channel = createChannel(connection);
+		startConsuming();
+		for (QueueConsumer consumer : oldConsumers) {
+			try {
+				consumer.getChannel().basicNack(0, true, true);
+				consumer.getChannel().close();
+			} catch (Exception e) {
+				trace.log(TraceLevel.WARN, "Exception at channel close: " + e.getMessage()); //$NON-NLS-1$
 			}
-		};
+		}
 	}
 	
 	@Parameter(optional = true, description = "Routing key/keys to bind the queue to. If you are connecting to an existing queue, these bindings will be ignored.")
@@ -280,11 +1034,175 @@ public class RabbitMQSource extends RabbitMQBaseOper {
 		queueNameParameter = value;
 	}
 	
+	@Parameter(optional = true, description = "The number of consumers, each on a channel of its own. The consumers receive and submit messages concurrently, "
+			+ "so more than one consumer helps if a single consumer thread cannot keep up with the queue. "
+			+ "The prefetch limits apply to each consumer. The default is 1, or the number of queues if consumerQueues is specified.")
+	public void setConsumerCount(int value) {
+		consumerCount = value;
+	}
+	
+	@Parameter(optional = true, description = "If greater than 0, messages are submitted by a thread of each consumer instead of the thread that receives them, "
+			+ "so that a slow downstream does not hold up the client library. This is the high-water mark of the buffer between the two threads: "
+			+ "when a consumer has this many messages buffered, the prefetch count of its channel is lowered to one message until the buffer has been drained to submitBufferLowWater. "
+			+ "The buffer holds at most this many messages; the thread that receives messages waits while it is full, which in ackMode \\\"auto\\\" is the only limit because the broker ignores the prefetch count there. "
+			+ "The default is 0 (messages are submitted by the thread that receives them).")
+	public void setSubmitBufferSize(int value) {
+		submitBufferSize = value;
+	}
+	
+	@Parameter(optional = true, description = "The number of buffered messages below which a consumer that was paused by submitBufferSize gets its prefetch count back. "
+			+ "The default is half of submitBufferSize.")
+	public void setSubmitBufferLowWater(int value) {
+		submitBufferLowWater = value;
+	}
+	
+	@CustomMetric(	name = "submitBufferDepth",
+					kind = Metric.Kind.GAUGE,
+					description = "The number of messages buffered for the submitter threads.")
+	public void setSubmitBufferDepthMetric(Metric submitBufferDepth) {
+		this.submitBufferDepth = submitBufferDepth;
+	}
+	
+	@CustomMetric(	name = "consumerPauses",
+					kind = Metric.Kind.COUNTER,
+					description = "The number of times a consumer was paused because its submit buffer reached submitBufferSize.")
+	public void setConsumerPausesMetric(Metric consumerPauses) {
+		this.consumerPauses = consumerPauses;
+	}
+	
+	@CustomMetric(	name = "pausedTime",
+					kind = Metric.Kind.TIME,
+					description = "The total time in milliseconds consumers have been paused because their submit buffer was full.")
+	public void setPausedTimeMetric(Metric pausedTime) {
+		this.pausedTime = pausedTime;
+	}
+	
+	@Parameter(optional = true, description = "Names of further existing queues to consume from. The consumers are assigned in turn to the queue of the queueName parameter "
+			+ "and to these queues, and there is at least one consumer per queue. These queues are not declared or bound by this operator.")
+	public void setConsumerQueues(List<String> values) {
+		if (values != null)
+			consumerQueues.addAll(values);
+	}
+	
+	@Parameter(optional = true, description = "If true and the operator is in a parallel region, each channel of the region consumes its own queue, "
+			+ "named after the queueName parameter followed by a dash and the channel index, for example myQueue-0, myQueue-1 and so on. "
+			+ "A queue created by the operator is bound to each routing key followed by a dot and the channel index, or just to the channel index if there is no routing key, "
+			+ "which are the routing keys a RabbitMQSink with shardCount publishes to. "
+			+ "If exchangeType is \\\"x-consistent-hash\\\", the queue is bound with the routing keys as given, or with a weight of 1, and the exchange spreads the messages over the queues. "
+			+ "Requires the queueName parameter. The default is false.")
+	public void setShardQueues(boolean value) {
+		shardQueues = value;
+	}
+	
 	@Parameter(optional = true, description = "Name of the RabbitMQ exchange to bind the queue to. If consuming from an already existing queue, this parameter is ignored. To use default RabbitMQ exchange, do not specify this parameter or use empty quotes: \\\"\\\".")
 	public void setExchangeName(String value) {
 		exchangeName = value;
 	}
 
+	@Parameter(optional = true, description = "Specifies how messages are acknowledged. With \\\"auto\\\", the broker considers a message acknowledged as soon as it is delivered, "
+			+ "so messages that have not been submitted yet are lost if the PE fails. With \\\"manual\\\", a message is acknowledged only after its tuple has been submitted, "
+			+ "and acknowledgements are sent in batches as configured by ackBatchSize and ackInterval. The default is \\\"auto\\\".")
+	public void setAckMode(String value) {
+		ackMode = value;
+	}
+	
+	@Parameter(optional = true, description = "If ackMode is \\\"manual\\\", this is the number of submitted messages that are acknowledged together. The default is 100.")
+	public void setAckBatchSize(int value) {
+		ackBatchSize = value;
+	}
+	
+	@Parameter(optional = true, description = "If ackMode is \\\"manual\\\", this is the maximum time (in ms) a submitted message waits for its acknowledgement if fewer than ackBatchSize messages are pending. The default is 1000 ms.")
+	public void setAckInterval(long value) {
+		ackInterval = value;
+	}
+
+	@Parameter(optional = true, description = "The maximum number of unacknowledged messages the broker delivers to this operator. "
+			+ "The broker only applies this limit if ackMode is \\\"manual\\\". If adaptivePrefetch is true, this is the upper bound of the adaptive prefetch count. "
+			+ "The default is 0 (unlimited).")
+	public void setPrefetchCount(int value) {
+		prefetchCount = value;
+	}
+	
+	@Parameter(optional = true, description = "The maximum number of bytes of unacknowledged messages the broker delivers to this operator. "
+			+ "Because RabbitMQ does not support a prefetch size, the operator converts this limit into a prefetch count based on the average size of the messages it receives. "
+			+ "The broker only applies this limit if ackMode is \\\"manual\\\". The default is 0 (unlimited).")
+	public void setPrefetchBytes(long value) {
+		prefetchBytes = value;
+	}
+	
+	@Parameter(optional = true, description = "If true, the prefetch count is adjusted every second based on the time it takes to submit tuples. "
+			+ "The prefetch count is halved while the average submit latency is above adaptivePrefetchLatency, and doubled while it is below half of it. "
+			+ "It never drops below minPrefetchCount and never exceeds prefetchCount, if specified. "
+			+ "In a consistent region, messages are only acknowledged when a checkpoint is complete, so this parameter is ignored there. The default is false.")
+	public void setAdaptivePrefetch(boolean value) {
+		adaptivePrefetch = value;
+	}
+	
+	@Parameter(optional = true, description = "If adaptivePrefetch is true, this is the average submit latency (in ms) the prefetch count is adjusted to. The default is 1.0 ms.")
+	public void setAdaptivePrefetchLatency(double value) {
+		adaptivePrefetchLatency = value;
+	}
+	
+	@Parameter(optional = true, description = "The lowest prefetch count that adaptivePrefetch and prefetchBytes set. "
+			+ "In a consistent region, where messages are only acknowledged when a checkpoint is complete, this limits the messages delivered per checkpoint interval. "
+			+ "The default is ackBatchSize if ackMode is \\\"manual\\\", and 1 otherwise.")
+	public void setMinPrefetchCount(int value) {
+		minPrefetchCount = value;
+	}
+	
+	@CustomMetric(	name = "prefetchCount",
+					kind = Metric.Kind.GAUGE,
+					description = "The prefetch count most recently set on a consumer channel. Zero if the prefetch count is unlimited.")
+	public void setPrefetchCountMetric(Metric prefetchCountMetric) {
+		this.prefetchCountMetric = prefetchCountMetric;
+	}
+	
+	@Parameter(optional = true, description = "The maximum number of bytes of chunked messages from a RabbitMQSink that have not received all of their chunks yet. "
+			+ "When the buffer is full, the oldest incomplete message is dropped. Unless ackMode is \\\"auto\\\", the chunks of a dropped message are rejected "
+			+ "without being requeued, so that the broker dead-letters them if the queue has a dead letter exchange. The default is 64 MB.")
+	public void setChunkBufferSize(long value) {
+		chunkBufferSize = value;
+	}
+	
+	@Parameter(optional = true, description = "The time in milliseconds within which all chunks of a chunked message must arrive. "
+			+ "Incomplete messages are dropped after this time. The default is 60000.")
+	public void setChunkTimeout(long value) {
+		chunkTimeout = value;
+	}
+	
+	@Parameter(optional = true, description = "If set to true, messages with a content encoding of \\\"deflate\\\", \\\"gzip\\\" or of a codec added to the toolkit "
+			+ "are decompressed, for example those compressed by a RabbitMQSink (see its compression parameter). The default is false.")
+	public void setDecompress(boolean value) {
+		decompress = value;
+	}
+	
+	@Parameter(optional = true, description = "If decompress is set to true, this is the maximum size in bytes of a decompressed message. "
+			+ "A message that would decompress to more bytes is submitted as is. The default is 64 MB.")
+	public void setMaxDecompressedSize(int value) {
+		maxDecompressedSize = value;
+	}
+	
+	@CustomMetric(	name = "chunkBufferBytes",
+					kind = Metric.Kind.GAUGE,
+					description = "The number of bytes of chunked messages that have not received all of their chunks yet.")
+	public void setChunkBufferBytesMetric(Metric chunkBufferBytes) {
+		this.chunkBufferBytes = chunkBufferBytes;
+	}
+	
+	@CustomMetric(	name = "evictedChunkedMessages",
+					kind = Metric.Kind.COUNTER,
+					description = "The number of chunked messages that were dropped before all of their chunks arrived.")
+	public void setEvictedChunkedMessagesMetric(Metric evictedChunkedMessages) {
+		this.evictedChunkedMessages = evictedChunkedMessages;
+	}
+	
+	@CustomMetric(	name = "decompressionTime",
+					kind = Metric.Kind.TIME,
+					description = "The total time in milliseconds spent decompressing messages.")
+	public void setDecompressionTimeMetric(Metric decompressionTime) {
+		this.decompressionTime = decompressionTime;
+	}
+
 	/**
 	 * Shutdown this operator, which will interrupt the thread executing the
 	 * <code>produceTuples()</code> method.
@@ -295,6 +1213,28 @@ public class RabbitMQSource extends RabbitMQBaseOper {
 			processThread.interrupt();
 			processThread = null;
 		}
+		if (ackTimer != null) {
+			ackTimer.cancel(false);
+			ackTimer = null;
+		}
+		if (chunkTimer != null) {
+			chunkTimer.cancel(false);
+			chunkTimer = null;
+		}
+		if (prefetchTimer != null) {
+			prefetchTimer.cancel(false);
+			prefetchTimer = null;
+		}
+		if (deliveryRateTimer != null) {
+			deliveryRateTimer.cancel(false);
+			deliveryRateTimer = null;
+		}
+		for (QueueConsumer consumer : consumers) {
+			consumer.interrupt();
+			if (consumer.ackBatcher != null) {
+				consumer.ackBatcher.flush();
+			}
+		}
 		OperatorContext context = getOperatorContext();
 		trace.log(TraceLevel.ALL, "Operator " + context.getName() //$NON-NLS-1$
 				+ " shutting down in PE: " + context.getPE().getPEId() //$NON-NLS-1$
@@ -314,8 +1254,19 @@ public class RabbitMQSource extends RabbitMQBaseOper {
 			"will be ignored. Only queues created by this operator will result in exchange/routing key bindings. " +  //$NON-NLS-1$
 			"All exchanges and queues created by this operator are non-durable and auto-delete." +  //$NON-NLS-1$
 			"This operator supports direct, fanout, and topic exchanges. It does not support header exchanges. " +  //$NON-NLS-1$
+			"Messages packed by a RabbitMQSink (see its packSize parameter) are unpacked into one tuple per packed message. " +  //$NON-NLS-1$
+			"Messages that a RabbitMQSink has split into chunks (see its chunkSize parameter) are put together again into one tuple. " +  //$NON-NLS-1$
+			"To decompress messages with a content encoding of \\\"deflate\\\", \\\"gzip\\\" or of a codec added to the toolkit, set the decompress parameter. " +  //$NON-NLS-1$
+			"With consumerCount greater than 1, several consumers receive and submit messages concurrently, so tuples from different consumers may be submitted in any order. " +  //$NON-NLS-1$
+			"The metrics consumer<n>Deliveries and consumer<n>DeliveryRate show the number of messages and messages per second delivered to each consumer. " +  //$NON-NLS-1$
+			"With submitBufferSize, messages are submitted by a separate thread of each consumer, and a consumer is paused while too many messages are waiting to be submitted. " +  //$NON-NLS-1$
+			"In a parallel region, shardQueues gives each channel a queue of its own, to spread the load over several queues of the broker. " +  //$NON-NLS-1$
+			"By default, messages are acknowledged on delivery. To acknowledge them only after they have been submitted, set ackMode to \\\"manual\\\". " +  //$NON-NLS-1$
 			"\\n\\n**Behavior in a Consistent Region**" +  //$NON-NLS-1$
-			"\\nThis operator cannot participate in a consistent region." +  //$NON-NLS-1$
+			"\\nThis operator can be the start of a consistent region. It cannot be the trigger of an operator-driven consistent region. " +  //$NON-NLS-1$
+			"In a consistent region, the ackMode parameter is ignored: messages are acknowledged once a later checkpoint of the region has completed, " +  //$NON-NLS-1$
+			"and when the region is reset, the broker delivers all messages that have not been acknowledged again. " +  //$NON-NLS-1$
+			"Messages are therefore processed at least once. " +  //$NON-NLS-1$
 			BASE_DESC
 			;
 }
@@ -0,0 +1,178 @@
+package com.ibm.streamsx.rabbitmq;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+
+import com.ibm.streams.operator.logging.TraceLevel;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.AddressResolver;
+import com.rabbitmq.client.RecoveryDelayHandler;
+
+/**
+ * Decides how long to wait before the next connection attempt and in which
+ * order the broker addresses are tried, both for the initial connection and
+ * for automatic recovery. With exponential backoff, the delay is drawn at
+ * random between zero and the interval doubled with every attempt, up to a
+ * maximum (full jitter), so that many clients that lost the same broker do
+ * not reconnect in lockstep. The addresses can be tried in the configured
+ * order, shuffled, or least recently failed first.
+ */
+class ReconnectPolicy implements RecoveryDelayHandler, AddressResolver {
+
+	static final String BACKOFF_FIXED = "fixed"; //$NON-NLS-1$
+	static final String BACKOFF_EXPONENTIAL = "exponential"; //$NON-NLS-1$
+
+	static final String ORDER_CONFIGURED = "configured"; //$NON-NLS-1$
+	static final String ORDER_SHUFFLE = "shuffle"; //$NON-NLS-1$
+	static final String ORDER_LEAST_RECENTLY_FAILED = "leastRecentlyFailed"; //$NON-NLS-1$
+
+	private final Logger trace = Logger.getLogger(this.getClass().getCanonicalName());
+
+	private final String backoff;
+	private final long interval;
+	private final long maxInterval;
+	private final String addressOrder;
+
+	private List<Address> addresses = new ArrayList<Address>();
+	// the IP addresses of each configured address, resolved once
+	private Map<Address, Set<String>> hostAddresses = new HashMap<Address, Set<String>>();
+	private final Map<Address, Long> lastFailures = new HashMap<Address, Long>();
+	// the addresses handed out for the attempt in progress
+	private List<Address> attempted = null;
+
+	/**
+	 * @param backoff		fixed or exponential.
+	 * @param interval		The delay of the first attempt, and of every attempt if the backoff is fixed.
+	 * @param maxInterval	The maximum delay with exponential backoff.
+	 * @param addressOrder	configured, shuffle or leastRecentlyFailed.
+	 */
+	ReconnectPolicy(String backoff, long interval, long maxInterval, String addressOrder) {
+		this.backoff = backoff;
+		this.interval = interval;
+		this.maxInterval = Math.max(interval, maxInterval);
+		this.addressOrder = addressOrder;
+	}
+
+	/*
+	 * The addresses are resolved here, so that matching the address of a
+	 * connection later does not need a (reverse) DNS lookup.
+	 */
+	void setAddresses(Address[] configured) {
+		List<Address> list = new ArrayList<Address>();
+		Collections.addAll(list, configured);
+		Map<Address, Set<String>> resolved = new HashMap<Address, Set<String>>();
+		for (Address address : configured) {
+			Set<String> ips = new HashSet<String>();
+			try {
+				for (InetAddress ip : InetAddress.getAllByName(address.getHost())) {
+					ips.add(ip.getHostAddress());
+				}
+			} catch (UnknownHostException e) {
+				trace.log(TraceLevel.WARN, "Cannot resolve broker host: " + address.getHost()); //$NON-NLS-1$
+			}
+			resolved.put(address, ips);
+		}
+		synchronized (this) {
+			addresses = list;
+			hostAddresses = resolved;
+		}
+	}
+
+	/**
+	 * @param attempt	The number of attempts made so far, starting at 0.
+	 */
+	@Override
+	public long getDelay(int attempt) {
+		if (!BACKOFF_EXPONENTIAL.equals(backoff)) {
+			return interval;
+		}
+		long ceiling = interval;
+		for (int i = 0; i < attempt && ceiling < maxInterval; i++) {
+			ceiling = ceiling > maxInterval / 2 ? maxInterval : ceiling * 2;
+		}
+		return ThreadLocalRandom.current().nextLong(ceiling + 1);
+	}
+
+	/**
+	 * Called by the client for every connection attempt. If the previous
+	 * attempt has not succeeded, all of its addresses failed.
+	 */
+	@Override
+	public synchronized List<Address> getAddresses() {
+		long now = System.currentTimeMillis();
+		if (attempted != null) {
+			for (Address address : attempted) {
+				lastFailures.put(address, now);
+			}
+		}
+		List<Address> ordered = new ArrayList<Address>(addresses);
+		if (!ORDER_CONFIGURED.equals(addressOrder)) {
+			Collections.shuffle(ordered, ThreadLocalRandom.current());
+		}
+		if (ORDER_LEAST_RECENTLY_FAILED.equals(addressOrder)) {
+			// stable, so addresses that failed at the same time stay shuffled
+			Collections.sort(ordered, new Comparator<Address>() {
+				@Override
+				public int compare(Address a, Address b) {
+					return Long.compare(lastFailure(a), lastFailure(b));
+				}
+			});
+		}
+		attempted = ordered;
+		return ordered;
+	}
+
+	/**
+	 * Records a successful connection. The addresses tried before it failed.
+	 */
+	synchronized void connected(InetAddress host, int port) {
+		if (attempted == null) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		for (Address address : attempted) {
+			if (matches(address, host, port)) {
+				break;
+			}
+			lastFailures.put(address, now);
+		}
+		attempted = null;
+	}
+
+	/**
+	 * Records that the connection to an address was lost.
+	 */
+	synchronized void failed(InetAddress host, int port) {
+		long now = System.currentTimeMillis();
+		for (Address address : addresses) {
+			if (matches(address, host, port)) {
+				lastFailures.put(address, now);
+			}
+		}
+	}
+
+	private long lastFailure(Address address) {
+		Long failure = lastFailures.get(address);
+		return failure == null ? 0 : failure;
+	}
+
+	private boolean matches(Address address, InetAddress host, int port) {
+		if (host == null || (address.getPort() != port && address.getPort() != -1)) {
+			return false;
+		}
+		String ip = host.getHostAddress();
+		Set<String> ips = hostAddresses.get(address);
+		return address.getHost().equals(ip) || (ips != null && ips.contains(ip));
+	}
+}
@@ -0,0 +1,236 @@
+package com.ibm.streamsx.rabbitmq;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.ibm.streams.operator.logging.TraceLevel;
+import com.ibm.streams.operator.metrics.Metric;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Bounded queue of messages that failed to publish. A background thread
+ * retries them in order, backing off exponentially from the retry delay, and
+ * drops a message once its retries are used up. To keep the order of the
+ * messages, new messages are queued behind the failed ones as long as the
+ * queue is not empty.
+ */
+class RetryQueue implements Runnable {
+
+	interface Publisher {
+		void publish(String routingKey, BasicProperties props, byte[] message) throws Exception;
+	}
+
+	private static class PendingMessage {
+		final String routingKey;
+		final BasicProperties props;
+		final byte[] message;
+		boolean failed = false;
+		int retries = 0;
+		long dueNanos;
+
+		PendingMessage(String routingKey, BasicProperties props, byte[] message) {
+			this.routingKey = routingKey;
+			this.props = props;
+			this.message = message;
+		}
+	}
+
+	private final Logger trace = Logger.getLogger(this.getClass().getCanonicalName());
+
+	private final ArrayDeque<PendingMessage> queue = new ArrayDeque<PendingMessage>();
+	private final Publisher publisher;
+	private final int capacity;
+	private final int maxRetries;
+	private final long retryDelay;
+	private final long maxRetryDelay;
+
+	private final Metric queueDepth;
+	private final Metric retryCount;
+	private final Metric droppedMessages;
+
+	private boolean closed = false;
+
+	/**
+	 * @param publisher			Publishes a message, throws if it could not be sent.
+	 * @param capacity			The maximum number of queued messages.
+	 * @param maxRetries		The number of retries before a message is dropped.
+	 * @param retryDelay		The delay (in ms) before the first retry. It doubles with every retry.
+	 * @param maxRetryDelay		The maximum delay (in ms) between two retries.
+	 * @param queueDepth		Gauge updated with the number of queued messages.
+	 * @param retryCount		Counter incremented for each retry.
+	 * @param droppedMessages	Counter incremented for each dropped message.
+	 */
+	RetryQueue(Publisher publisher, int capacity, int maxRetries, long retryDelay, long maxRetryDelay,
+			Metric queueDepth, Metric retryCount, Metric droppedMessages) {
+		this.publisher = publisher;
+		this.capacity = capacity;
+		this.maxRetries = maxRetries;
+		this.retryDelay = retryDelay;
+		this.maxRetryDelay = Math.max(retryDelay, maxRetryDelay);
+		this.queueDepth = queueDepth;
+		this.retryCount = retryCount;
+		this.droppedMessages = droppedMessages;
+	}
+
+	void start(ThreadFactory threadFactory) {
+		Thread thread = threadFactory.newThread(this);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Queues a message whose publish failed. Blocks while the queue is full.
+	 */
+	synchronized void addFailed(String routingKey, BasicProperties props, byte[] message) throws InterruptedException {
+		PendingMessage pending = new PendingMessage(routingKey, props, message);
+		pending.failed = true;
+		pending.dueNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryDelay);
+		put(pending);
+	}
+
+	/**
+	 * Queues a message behind the messages waiting for a retry. Blocks while the
+	 * queue is full.
+	 * @return false if no message is waiting, then the caller publishes it directly.
+	 */
+	synchronized boolean addIfPending(String routingKey, BasicProperties props, byte[] message) throws InterruptedException {
+		if (queue.isEmpty()) {
+			return false;
+		}
+		PendingMessage pending = new PendingMessage(routingKey, props, message);
+		pending.dueNanos = System.nanoTime();
+		put(pending);
+		return true;
+	}
+
+	/**
+	 * Blocks until all queued messages have been sent or dropped.
+	 * @param timeoutMillis	The maximum time to wait.
+	 * @return false if there are still messages queued after the timeout.
+	 */
+	synchronized boolean awaitEmpty(long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (!queue.isEmpty() && !closed) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return false;
+			}
+			wait(remaining);
+		}
+		return true;
+	}
+
+	/**
+	 * Discards all queued messages without counting them as dropped, for
+	 * example because they will be sent again after a consistent region reset.
+	 */
+	synchronized void clear() {
+		queue.clear();
+		queueDepth.setValue(0);
+		notifyAll();
+	}
+
+	/**
+	 * Stops retrying, after giving the queued messages a last chance to be
+	 * sent. Messages still queued after the timeout are dropped.
+	 * @param timeoutMillis	The maximum time to wait for the queue to drain.
+	 */
+	synchronized void close(long timeoutMillis) {
+		try {
+			awaitEmpty(timeoutMillis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		closed = true;
+		if (!queue.isEmpty()) {
+			trace.log(TraceLevel.ERROR, "Dropping " + queue.size() + " message(s) waiting to be resent."); //$NON-NLS-1$ //$NON-NLS-2$
+			droppedMessages.incrementValue(queue.size());
+			queue.clear();
+			queueDepth.setValue(0);
+		}
+		notifyAll();
+	}
+
+	private void put(PendingMessage pending) throws InterruptedException {
+		while (queue.size() >= capacity && !closed) {
+			wait();
+		}
+		if (closed) {
+			droppedMessages.increment();
+			return;
+		}
+		queue.add(pending);
+		queueDepth.setValue(queue.size());
+		notifyAll();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				PendingMessage head = awaitDueMessage();
+				if (head == null) {
+					return;
+				}
+
+				boolean sent = false;
+				try {
+					publisher.publish(head.routingKey, head.props, head.message);
+					sent = true;
+				} catch (Exception e) {
+					trace.log(TraceLevel.ERROR, "Exception message:" + e.getMessage()); //$NON-NLS-1$
+				}
+				completeAttempt(head, sent);
+			}
+		} catch (InterruptedException e) {
+			// operator is shutting down
+		}
+	}
+
+	private synchronized PendingMessage awaitDueMessage() throws InterruptedException {
+		while (!closed) {
+			PendingMessage head = queue.peek();
+			if (head == null) {
+				wait();
+				continue;
+			}
+			long waitNanos = head.dueNanos - System.nanoTime();
+			if (waitNanos <= 0) {
+				if (head.failed) {
+					head.retries++;
+					retryCount.increment();
+					trace.log(TraceLevel.ERROR, "Attempting to resend. Try number: " + head.retries); //$NON-NLS-1$
+				}
+				return head;
+			}
+			wait(TimeUnit.NANOSECONDS.toMillis(waitNanos) + 1);
+		}
+		return null;
+	}
+
+	private synchronized void completeAttempt(PendingMessage head, boolean sent) {
+		// the queue may have been cleared in the meantime
+		if (closed || queue.peek() != head) {
+			return;
+		}
+		if (sent) {
+			queue.poll();
+		} else if (head.failed && head.retries >= maxRetries) {
+			trace.log(TraceLevel.ERROR, "Failed to send message after " + head.retries + " attempts."); //$NON-NLS-1$ //$NON-NLS-2$
+			queue.poll();
+			droppedMessages.increment();
+		} else {
+			// back off exponentially: retryDelay, 2 * retryDelay, 4 * retryDelay...
+			long delay = retryDelay << Math.min(head.retries, 30);
+			if (delay <= 0 || delay > maxRetryDelay) {
+				delay = maxRetryDelay;
+			}
+			head.failed = true;
+			head.dueNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+		}
+		queueDepth.setValue(queue.size());
+		notifyAll();
+	}
+}
@@ -0,0 +1,83 @@
+package com.ibm.streamsx.rabbitmq;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import com.ibm.streams.operator.logging.TraceLevel;
+
+/**
+ * Keeps the SSLContexts of the PE, so that the key and trust stores are not
+ * loaded again for every connection and reconnection, and so that connections
+ * resume their TLS sessions from the session cache of the context instead of
+ * doing full handshakes. A context is loaded again once one of its store files
+ * has been modified.
+ */
+class SSLContextCache {
+
+	private static class Cached {
+		final long keyStoreModified;
+		final long trustStoreModified;
+		final SSLContext context;
+
+		Cached(long keyStoreModified, long trustStoreModified, SSLContext context) {
+			this.keyStoreModified = keyStoreModified;
+			this.trustStoreModified = trustStoreModified;
+			this.context = context;
+		}
+	}
+
+	private static final Logger trace = Logger.getLogger(SSLContextCache.class.getCanonicalName());
+
+	// keyed by all settings but the modification times; the key contains the passwords, so it must not be logged
+	private static final Map<String, Cached> contexts = new HashMap<String, Cached>();
+
+	static synchronized SSLContext get(String protocol, String keyStoreType, String keyStoreAlgorithm, String keyStorePath,
+			String keyStorePassword, String trustStoreType, String trustStoreAlgorithm, String trustStorePath,
+			String trustStorePassword) throws Exception {
+		String key = Arrays.asList(protocol, keyStoreType, keyStoreAlgorithm, keyStorePath, keyStorePassword,
+				trustStoreType, trustStoreAlgorithm, trustStorePath, trustStorePassword).toString();
+		long keyStoreModified = new File(keyStorePath).lastModified();
+		long trustStoreModified = new File(trustStorePath).lastModified();
+
+		Cached cached = contexts.get(key);
+		if (cached != null && cached.keyStoreModified == keyStoreModified && cached.trustStoreModified == trustStoreModified) {
+			return cached.context;
+		}
+
+		char[] keyStorePasswordCharArray = keyStorePassword.toCharArray();
+		KeyStore ks = KeyStore.getInstance(keyStoreType);
+		try (InputStream in = new FileInputStream(keyStorePath)) {
+			ks.load(in, keyStorePasswordCharArray);
+		}
+
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(keyStoreAlgorithm);
+		kmf.init(ks, keyStorePasswordCharArray);
+
+		char[] trustStorePasswordCharArray = trustStorePassword != null ? trustStorePassword.toCharArray() : null;
+		KeyStore tks = KeyStore.getInstance(trustStoreType);
+		try (InputStream in = new FileInputStream(trustStorePath)) {
+			tks.load(in, trustStorePasswordCharArray);
+		}
+
+		TrustManagerFactory tmf = TrustManagerFactory.getInstance(trustStoreAlgorithm);
+		tmf.init(tks);
+
+		SSLContext c = SSLContext.getInstance(protocol);
+		c.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+
+		contexts.put(key, new Cached(keyStoreModified, trustStoreModified, c));
+		trace.log(TraceLevel.INFO, (cached == null ? "Loaded" : "Reloaded") + " SSL context for key store " + keyStorePath //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				+ " and trust store " + trustStorePath); //$NON-NLS-1$
+		return c;
+	}
+}
@@ -0,0 +1,240 @@
+package com.ibm.streamsx.rabbitmq;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+import com.ibm.streams.operator.logging.TraceLevel;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.ExceptionHandler;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.TopologyRecoveryException;
+
+/**
+ * Lets the RabbitMQ operators of a PE share their connections. Operators that
+ * would open the same connection, which is identified by a key made of all
+ * connection settings, get the same connection and open their own channels on
+ * it. A connection is reference counted and closed when the last operator
+ * releases it. Automatic recovery happens once per connection, and every
+ * operator is notified by its own recovery listener.
+ * <p>
+ * The exception handler and the reconnection policy of a shared connection
+ * belong to the connection, not to the operator that happened to open it: the
+ * exception handler passes every exception on to the handlers of the
+ * operators that hold the connection at the time.
+ */
+class SharedConnections {
+
+	interface Opener {
+		/**
+		 * @param exceptionHandler	The exception handler the connection must use.
+		 * @param reconnectPolicy	The reconnection policy the connection must use.
+		 */
+		Connection open(ExceptionHandler exceptionHandler, ReconnectPolicy reconnectPolicy)
+				throws IOException, TimeoutException;
+	}
+
+	private static class Shared {
+		final String key;
+		final ReconnectPolicy reconnectPolicy;
+		final SharedExceptionHandler exceptionHandler = new SharedExceptionHandler();
+		// counted down once the connection has been opened or has failed to open
+		final CountDownLatch opened = new CountDownLatch(1);
+		volatile Connection connection = null;
+		volatile Exception failure = null;
+		int references = 0;
+
+		Shared(String key, ReconnectPolicy reconnectPolicy) {
+			this.key = key;
+			this.reconnectPolicy = reconnectPolicy;
+		}
+
+		boolean isStale() {
+			Connection c = connection;
+			return c != null && !c.isOpen() && !(c instanceof Recoverable);
+		}
+	}
+
+	private static final Logger trace = Logger.getLogger(SharedConnections.class.getCanonicalName());
+
+	private static final Map<String, Shared> byKey = new HashMap<String, Shared>();
+	private static final Map<Connection, Shared> byConnection = new IdentityHashMap<Connection, Shared>();
+
+	/**
+	 * Returns the connection of the key, opening it if there is none yet. A
+	 * connection that has been closed and is not recovered automatically is
+	 * replaced; the operators still holding it release it as usual.
+	 * <p>
+	 * The connection is opened without holding the lock of this class, so
+	 * that a slow broker only holds up the operators that want the same
+	 * connection. They wait for it to be opened, and fail if it cannot be.
+	 * @param exceptionHandler	The handler of the calling operator, until it releases the connection.
+	 * @param reconnectPolicy	The reconnection policy, used if the connection is opened.
+	 */
+	static Connection acquire(String key, ExceptionHandler exceptionHandler,
+			ReconnectPolicy reconnectPolicy, Opener opener) throws IOException, TimeoutException {
+		Shared shared;
+		boolean open = false;
+		synchronized (SharedConnections.class) {
+			shared = byKey.get(key);
+			if (shared != null && shared.isStale()) {
+				byKey.remove(key);
+				shared = null;
+			}
+			if (shared == null) {
+				shared = new Shared(key, reconnectPolicy);
+				byKey.put(key, shared);
+				open = true;
+			}
+			shared.references++;
+			shared.exceptionHandler.handlers.add(exceptionHandler);
+		}
+
+		if (open) {
+			try {
+				Connection connection = opener.open(shared.exceptionHandler, shared.reconnectPolicy);
+				synchronized (SharedConnections.class) {
+					byConnection.put(connection, shared);
+				}
+				shared.connection = connection;
+			} catch (IOException | TimeoutException | RuntimeException e) {
+				shared.failure = e;
+				abandon(shared, exceptionHandler);
+				throw e;
+			} finally {
+				shared.opened.countDown();
+			}
+		} else {
+			try {
+				shared.opened.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				abandon(shared, exceptionHandler);
+				throw new InterruptedIOException("Interrupted while waiting for a shared connection to open"); //$NON-NLS-1$
+			}
+			if (shared.connection == null) {
+				abandon(shared, exceptionHandler);
+				throw new IOException("Failed to open shared connection: " + shared.failure.getMessage(), shared.failure); //$NON-NLS-1$
+			}
+		}
+		synchronized (SharedConnections.class) {
+			trace.log(TraceLevel.INFO, "Using shared connection to " + shared.connection.getAddress() //$NON-NLS-1$
+					+ ", operators sharing it: " + shared.references); //$NON-NLS-1$
+		}
+		return shared.connection;
+	}
+
+	/*
+	 * Gives up the reference of an operator that did not get the connection.
+	 */
+	private static synchronized void abandon(Shared shared, ExceptionHandler exceptionHandler) {
+		shared.exceptionHandler.handlers.remove(exceptionHandler);
+		shared.references--;
+		// the next operator opens it again
+		if (shared.failure != null && byKey.get(shared.key) == shared) {
+			byKey.remove(shared.key);
+		}
+	}
+
+	/**
+	 * @return the reconnection policy of a connection returned by {@link #acquire}.
+	 */
+	static synchronized ReconnectPolicy getReconnectPolicy(Connection connection) {
+		Shared shared = byConnection.get(connection);
+		return shared == null ? null : shared.reconnectPolicy;
+	}
+
+	/**
+	 * Releases a connection returned by {@link #acquire}.
+	 * @param exceptionHandler	The handler passed to {@link #acquire}.
+	 * @return true if this was the last reference and the caller must close the connection.
+	 */
+	static synchronized boolean release(Connection connection, ExceptionHandler exceptionHandler) {
+		Shared shared = byConnection.get(connection);
+		if (shared == null) {
+			return true;
+		}
+		shared.exceptionHandler.handlers.remove(exceptionHandler);
+		if (--shared.references > 0) {
+			return false;
+		}
+		byConnection.remove(connection);
+		if (byKey.get(shared.key) == shared) {
+			byKey.remove(shared.key);
+		}
+		return true;
+	}
+
+	/**
+	 * Passes the exceptions of a shared connection on to the handlers of the
+	 * operators that hold it.
+	 */
+	private static class SharedExceptionHandler implements ExceptionHandler {
+		final CopyOnWriteArrayList<ExceptionHandler> handlers = new CopyOnWriteArrayList<ExceptionHandler>();
+
+		@Override
+		public void handleUnexpectedConnectionDriverException(Connection conn, Throwable exception) {
+			for (ExceptionHandler handler : handlers) {
+				handler.handleUnexpectedConnectionDriverException(conn, exception);
+			}
+		}
+
+		@Override
+		public void handleReturnListenerException(Channel channel, Throwable exception) {
+			for (ExceptionHandler handler : handlers) {
+				handler.handleReturnListenerException(channel, exception);
+			}
+		}
+
+		@Override
+		public void handleConfirmListenerException(Channel channel, Throwable exception) {
+			for (ExceptionHandler handler : handlers) {
+				handler.handleConfirmListenerException(channel, exception);
+			}
+		}
+
+		@Override
+		public void handleBlockedListenerException(Connection connection, Throwable exception) {
+			for (ExceptionHandler handler : handlers) {
+				handler.handleBlockedListenerException(connection, exception);
+			}
+		}
+
+		@Override
+		public void handleConsumerException(Channel channel, Throwable exception, Consumer consumer,
+				String consumerTag, String methodName) {
+			for (ExceptionHandler handler : handlers) {
+				handler.handleConsumerException(channel, exception, consumer, consumerTag, methodName);
+			}
+		}
+
+		@Override
+		public void handleConnectionRecoveryException(Connection conn, Throwable exception) {
+			for (ExceptionHandler handler : handlers) {
+				handler.handleConnectionRecoveryException(conn, exception);
+			}
+		}
+
+		@Override
+		public void handleChannelRecoveryException(Channel ch, Throwable exception) {
+			for (ExceptionHandler handler : handlers) {
+				handler.handleChannelRecoveryException(ch, exception);
+			}
+		}
+
+		@Override
+		public void handleTopologyRecoveryException(Connection conn, Channel ch, TopologyRecoveryException exception) {
+			for (ExceptionHandler handler : handlers) {
+				handler.handleTopologyRecoveryException(conn, ch, exception);
+			}
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package com.ibm.streamsx.rabbitmq;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import com.ibm.streams.operator.logging.TraceLevel;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.impl.FrameHandlerFactory;
+
+/**
+ * Holds the client thread pools that all RabbitMQ operators of a PE share: the
+ * pool that runs the NIO loops of NIO connections, and the work pool that
+ * dispatches deliveries to consumers. An operator holds a reference to a pool
+ * from its first connection until it shuts down, and a pool is shut down when
+ * its last reference is released.
+ * <p>
+ * The NIO loops themselves belong to the frame handler factory of a
+ * connection factory. All NIO connections with the same NIO settings are
+ * created by one frame handler factory, so that they share its nioThreads
+ * loops instead of each operator running loops of its own.
+ */
+class SharedTransport {
+
+	private static final Logger trace = Logger.getLogger(SharedTransport.class.getCanonicalName());
+
+	private static ExecutorService nioExecutor = null;
+	private static int nioReferences = 0;
+	// the NIO frame handler factories by their settings, their loops run on nioExecutor
+	private static final Map<String, FrameHandlerFactory> nioFrameHandlerFactories = new HashMap<String, FrameHandlerFactory>();
+
+	private static ExecutorService consumerExecutor = null;
+	private static int consumerExecutorThreads = 0;
+	private static int consumerReferences = 0;
+
+	/**
+	 * An NIO loop ends once its connections have been closed, and the next
+	 * loop reuses its thread, so the pool grows only while there are more
+	 * loops at the same time.
+	 */
+	static synchronized ExecutorService acquireNioExecutor() {
+		if (nioExecutor == null) {
+			nioExecutor = Executors.newCachedThreadPool(newDaemonThreadFactory("RabbitMQ-NIO-")); //$NON-NLS-1$
+			trace.log(TraceLevel.INFO, "Created shared NIO thread pool"); //$NON-NLS-1$
+		}
+		nioReferences++;
+		return nioExecutor;
+	}
+
+	static synchronized void releaseNioExecutor() {
+		if (nioReferences > 0 && --nioReferences == 0) {
+			nioExecutor.shutdown();
+			nioExecutor = null;
+			nioFrameHandlerFactories.clear();
+		}
+	}
+
+	/**
+	 * A connection factory whose NIO connections are created by the frame
+	 * handler factory that all connection factories with the same NIO settings
+	 * share. The settings must include the executor acquired with
+	 * {@link #acquireNioExecutor}.
+	 */
+	static class NioConnectionFactory extends ConnectionFactory {
+		private final String nioKey;
+
+		/**
+		 * @param nioKey	Identifies the NIO and SSL settings, must not be logged.
+		 */
+		NioConnectionFactory(String nioKey) {
+			this.nioKey = nioKey;
+			useNio();
+		}
+
+		@Override
+		protected synchronized FrameHandlerFactory createFrameHandlerFactory() throws IOException {
+			String key = nioKey + "," + isSSL() + "," + getConnectionTimeout(); //$NON-NLS-1$ //$NON-NLS-2$
+			synchronized (SharedTransport.class) {
+				FrameHandlerFactory factory = nioFrameHandlerFactories.get(key);
+				if (factory == null) {
+					factory = super.createFrameHandlerFactory();
+					nioFrameHandlerFactories.put(key, factory);
+					trace.log(TraceLevel.INFO, "Created shared NIO frame handler factory"); //$NON-NLS-1$
+				}
+				return factory;
+			}
+		}
+	}
+
+	/**
+	 * @param threads	The number of threads, used if there is no work pool yet.
+	 */
+	static synchronized ExecutorService acquireConsumerExecutor(int threads) {
+		if (consumerExecutor == null) {
+			consumerExecutor = Executors.newFixedThreadPool(threads, newDaemonThreadFactory("RabbitMQ-consumer-")); //$NON-NLS-1$
+			consumerExecutorThreads = threads;
+			trace.log(TraceLevel.INFO, "Created shared consumer work pool with " + threads + " thread(s)"); //$NON-NLS-1$ //$NON-NLS-2$
+		} else if (threads != consumerExecutorThreads) {
+			trace.log(TraceLevel.WARN, "Ignoring consumerThreads " + threads //$NON-NLS-1$
+					+ ", the shared consumer work pool of the PE already has " + consumerExecutorThreads + " thread(s)"); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		consumerReferences++;
+		return consumerExecutor;
+	}
+
+	static synchronized void releaseConsumerExecutor() {
+		if (consumerReferences > 0 && --consumerReferences == 0) {
+			consumerExecutor.shutdown();
+			consumerExecutor = null;
+		}
+	}
+
+	private static ThreadFactory newDaemonThreadFactory(final String prefix) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, prefix + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+}
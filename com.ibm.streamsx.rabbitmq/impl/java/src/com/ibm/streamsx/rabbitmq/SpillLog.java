@@ -0,0 +1,355 @@
+package com.ibm.streamsx.rabbitmq;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.ibm.streams.operator.logging.TraceLevel;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Append-only log of publishes on disk, made of memory-mapped segment files.
+ * Messages are read back in the order they were appended, and a segment file
+ * is deleted once all of its messages have been removed. Segments left over
+ * from a previous run are picked up when the log is opened, and reading
+ * resumes after the last message removed.
+ * <p>
+ * A segment starts with an int header holding the offset of its first message
+ * not removed yet. Each record is an int length followed by the message. A
+ * length of zero marks the end of the data in a segment; the length is written
+ * last, so a reader never sees a partially written record.
+ */
+class SpillLog {
+
+	static class SpilledMessage {
+		final long timestamp;
+		final String exchangeName;
+		final String routingKey;
+		final BasicProperties props;
+		final byte[] message;
+		final int size;
+
+		SpilledMessage(long timestamp, String exchangeName, String routingKey, BasicProperties props, byte[] message,
+				int size) {
+			this.timestamp = timestamp;
+			this.exchangeName = exchangeName;
+			this.routingKey = routingKey;
+			this.props = props;
+			this.message = message;
+			this.size = size;
+		}
+	}
+
+	private static class Segment {
+		final File file;
+		final MappedByteBuffer buffer;
+		int readPosition = HEADER_SIZE;
+		int writePosition = HEADER_SIZE;
+
+		Segment(File file, MappedByteBuffer buffer) {
+			this.file = file;
+			this.buffer = buffer;
+		}
+	}
+
+	private static final String SEGMENT_PREFIX = "spill-"; //$NON-NLS-1$
+	private static final String SEGMENT_SUFFIX = ".log"; //$NON-NLS-1$
+	private static final int HEADER_SIZE = 4;
+	private static final int NO_DELIVERY_MODE = -1;
+	private static final Charset UTF8 = Charset.forName("UTF-8"); //$NON-NLS-1$
+
+	private final Logger trace = Logger.getLogger(this.getClass().getCanonicalName());
+
+	private final File directory;
+	private final int segmentSize;
+	private final long maxBytes;
+
+	private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+	private long segmentBytes = 0;
+	private long nextSegmentNumber = 0;
+	private int pendingMessages = 0;
+
+	/**
+	 * @param directory		The directory for the segment files.
+	 * @param segmentSize	The size of a segment file in bytes.
+	 * @param maxBytes		The maximum size of all segment files together.
+	 */
+	SpillLog(File directory, int segmentSize, long maxBytes) {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Creates the directory, or picks up the segments in it.
+	 */
+	synchronized void open() throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create spill directory: " + directory); //$NON-NLS-1$
+		}
+
+		File[] files = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		long[] numbers = new long[files.length];
+		for (int i = 0; i < files.length; i++) {
+			String name = files[i].getName();
+			numbers[i] = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+		}
+		Arrays.sort(numbers);
+
+		for (long number : numbers) {
+			Segment segment = mapSegment(number, 0);
+			if (segment.buffer.capacity() < HEADER_SIZE) {
+				deleteSegment(segment);
+				continue;
+			}
+			// resume after the messages already removed, and find the end of the data
+			int readPosition = segment.buffer.getInt(0);
+			segment.readPosition = readPosition >= HEADER_SIZE ? readPosition : HEADER_SIZE;
+			segment.writePosition = segment.readPosition;
+			while (segment.writePosition + 4 <= segment.buffer.capacity()) {
+				int length = segment.buffer.getInt(segment.writePosition);
+				if (length <= 0) {
+					break;
+				}
+				segment.writePosition += 4 + length;
+				pendingMessages++;
+			}
+			nextSegmentNumber = number + 1;
+			if (segment.readPosition == segment.writePosition) {
+				// fully replayed before the restart
+				deleteSegment(segment);
+				continue;
+			}
+			segments.add(segment);
+		}
+		if (!segments.isEmpty()) {
+			trace.log(TraceLevel.WARN, "Found " + pendingMessages + " spilled message(s) from a previous run in: " + directory); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+	}
+
+	/**
+	 * Appends a message to the log.
+	 * @return the number of bytes written, or 0 if the log is full.
+	 */
+	synchronized int append(String exchangeName, String routingKey, BasicProperties props, byte[] message) throws IOException {
+		byte[] record = serialize(exchangeName, routingKey, props, message);
+
+		Segment segment = segments.peekLast();
+		// keep room for the end marker
+		if (segment == null || segment.writePosition + 8 + record.length > segment.buffer.capacity()) {
+			int size = Math.max(segmentSize, HEADER_SIZE + 8 + record.length);
+			if (segmentBytes + size > maxBytes) {
+				return 0;
+			}
+			segment = mapSegment(nextSegmentNumber++, size);
+			segments.add(segment);
+		}
+
+		segment.buffer.position(segment.writePosition + 4);
+		segment.buffer.put(record);
+		segment.buffer.putInt(segment.writePosition, record.length);
+		segment.writePosition += 4 + record.length;
+		pendingMessages++;
+		return 4 + record.length;
+	}
+
+	/**
+	 * @param max	The maximum number of messages to return.
+	 * @return the oldest messages in the log, in order, or an empty list if it is empty.
+	 */
+	synchronized List<SpilledMessage> peek(int max) throws IOException {
+		List<SpilledMessage> result = new ArrayList<SpilledMessage>();
+		for (Segment segment : segments) {
+			int position = segment.readPosition;
+			while (position < segment.writePosition && result.size() < max) {
+				int length = segment.buffer.getInt(position);
+				byte[] record = new byte[length];
+				segment.buffer.position(position + 4);
+				segment.buffer.get(record);
+				result.add(deserialize(record));
+				position += 4 + length;
+			}
+			if (result.size() >= max) {
+				break;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Removes messages returned by {@link #peek(int)}, oldest first. The read
+	 * offset is kept in the segment, and a segment is deleted once all of its
+	 * messages have been removed, so that they are not replayed again after a
+	 * restart.
+	 * @param count	The number of messages to remove.
+	 */
+	synchronized void remove(int count) {
+		for (int i = 0; i < count; i++) {
+			Segment segment = segments.peekFirst();
+			if (segment == null || segment.readPosition >= segment.writePosition) {
+				break;
+			}
+			segment.readPosition += 4 + segment.buffer.getInt(segment.readPosition);
+			segment.buffer.putInt(0, segment.readPosition);
+			pendingMessages--;
+			if (segment.readPosition >= segment.writePosition) {
+				// the next append maps a new segment if this was the last one
+				deleteSegment(segments.poll());
+			}
+		}
+		if (pendingMessages == 0) {
+			notifyAll();
+		}
+	}
+
+	synchronized boolean isEmpty() {
+		return pendingMessages == 0;
+	}
+
+	/**
+	 * Blocks until all messages have been removed.
+	 * @param timeoutMillis	The maximum time to wait.
+	 * @return false if there are still messages in the log after the timeout.
+	 */
+	synchronized boolean awaitEmpty(long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (pendingMessages > 0) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return false;
+			}
+			wait(remaining);
+		}
+		return true;
+	}
+
+	synchronized int getPendingMessages() {
+		return pendingMessages;
+	}
+
+	synchronized void close() {
+		for (Segment segment : segments) {
+			segment.buffer.force();
+		}
+		segments.clear();
+	}
+
+	private Segment mapSegment(long number, int size) throws IOException {
+		File file = new File(directory, SEGMENT_PREFIX + number + SEGMENT_SUFFIX);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw"); //$NON-NLS-1$
+		try {
+			FileChannel fileChannel = raf.getChannel();
+			long length = size > 0 ? size : fileChannel.size();
+			// the mapping stays valid after the file is closed
+			Segment segment = new Segment(file, fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, length));
+			if (size > 0) {
+				segment.buffer.putInt(0, HEADER_SIZE);
+			}
+			segmentBytes += length;
+			return segment;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void deleteSegment(Segment segment) {
+		segmentBytes -= segment.buffer.capacity();
+		if (!segment.file.delete()) {
+			trace.log(TraceLevel.WARN, "Cannot delete spill segment: " + segment.file); //$NON-NLS-1$
+		}
+	}
+
+	private static byte[] serialize(String exchangeName, String routingKey, BasicProperties props, byte[] message)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(message.length + 64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeLong(System.currentTimeMillis());
+		writeString(out, exchangeName);
+		writeString(out, routingKey);
+		out.writeInt(props.getDeliveryMode() != null ? props.getDeliveryMode() : NO_DELIVERY_MODE);
+		writeString(out, props.getContentType() != null ? props.getContentType() : ""); //$NON-NLS-1$
+		writeString(out, props.getContentEncoding() != null ? props.getContentEncoding() : ""); //$NON-NLS-1$
+		Map<String, Object> headers = props.getHeaders();
+		out.writeInt(headers != null ? headers.size() : -1);
+		if (headers != null) {
+			for (Map.Entry<?, ?> header : headers.entrySet()) {
+				writeString(out, String.valueOf(header.getKey()));
+				writeString(out, String.valueOf(header.getValue()));
+			}
+		}
+		out.writeInt(message.length);
+		out.write(message);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static SpilledMessage deserialize(byte[] record) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+		long timestamp = in.readLong();
+		String exchangeName = readString(in);
+		String routingKey = readString(in);
+
+		BasicProperties.Builder propsBuilder = new BasicProperties.Builder();
+		int deliveryMode = in.readInt();
+		if (deliveryMode != NO_DELIVERY_MODE) {
+			propsBuilder.deliveryMode(deliveryMode);
+		}
+		String contentType = readString(in);
+		if (!contentType.isEmpty()) {
+			propsBuilder.contentType(contentType);
+		}
+		String contentEncoding = readString(in);
+		if (!contentEncoding.isEmpty()) {
+			propsBuilder.contentEncoding(contentEncoding);
+		}
+		int headerCount = in.readInt();
+		if (headerCount >= 0) {
+			Map<String, Object> headers = new HashMap<String, Object>();
+			for (int i = 0; i < headerCount; i++) {
+				headers.put(readString(in), readString(in));
+			}
+			propsBuilder.headers(headers);
+		}
+
+		byte[] message = new byte[in.readInt()];
+		in.readFully(message);
+		return new SpilledMessage(timestamp, exchangeName, routingKey, propsBuilder.build(), message, 4 + record.length);
+	}
+
+	/*
+	 * DataOutputStream.writeUTF cannot write strings that encode to more than
+	 * 64 KB, such as long header values, so strings are written as an int
+	 * length followed by their UTF-8 bytes.
+	 */
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+}
@@ -0,0 +1,150 @@
+package com.ibm.streamsx.rabbitmq;
+
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.ibm.streams.operator.logging.TraceLevel;
+import com.ibm.streams.operator.metrics.Metric;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Background thread that publishes the messages of a {@link SpillLog} in
+ * order. It is woken up when the connection has been (re)established, and
+ * otherwise checks the log every retry interval. Messages are published in
+ * batches, and a batch is only removed from the log once the broker has
+ * confirmed it; a batch that is rejected or not confirmed is published again.
+ */
+class SpillReplayer implements Runnable {
+
+	interface Publisher {
+		void publish(String exchangeName, String routingKey, BasicProperties props, byte[] message) throws Exception;
+
+		/**
+		 * Blocks until the broker has confirmed the messages published so far.
+		 * @return false if the broker rejected one of them.
+		 */
+		boolean awaitConfirms() throws Exception;
+	}
+
+	private static final int REPLAY_BATCH_SIZE = 256;
+
+	private final Logger trace = Logger.getLogger(this.getClass().getCanonicalName());
+
+	private final SpillLog spillLog;
+	private final Publisher publisher;
+	private final double replayRate;
+	private final long retryInterval;
+	private final Metric replayLag;
+
+	private boolean signaled = false;
+	private boolean closed = false;
+
+	/**
+	 * @param spillLog		The log to replay.
+	 * @param publisher		Publishes a message, throws if it could not be sent.
+	 * @param replayRate	The maximum number of messages per second, or 0 if unlimited.
+	 * @param retryInterval	The time (in ms) to wait before trying again after a failure.
+	 * @param replayLag		Gauge updated with the age (in ms) of the oldest message not replayed yet.
+	 */
+	SpillReplayer(SpillLog spillLog, Publisher publisher, double replayRate, long retryInterval, Metric replayLag) {
+		this.spillLog = spillLog;
+		this.publisher = publisher;
+		this.replayRate = replayRate;
+		this.retryInterval = retryInterval;
+		this.replayLag = replayLag;
+	}
+
+	void start(ThreadFactory threadFactory) {
+		Thread thread = threadFactory.newThread(this);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Starts replaying, for example after the connection has been recovered.
+	 */
+	synchronized void wakeUp() {
+		signaled = true;
+		notifyAll();
+	}
+
+	synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (awaitSignal()) {
+				replay();
+			}
+		} catch (InterruptedException e) {
+			// operator is shutting down
+		}
+	}
+
+	private synchronized boolean awaitSignal() throws InterruptedException {
+		if (!signaled && !closed) {
+			wait(retryInterval);
+		}
+		signaled = false;
+		return !closed;
+	}
+
+	private synchronized boolean isClosed() {
+		return closed;
+	}
+
+	private void replay() throws InterruptedException {
+		long intervalNanos = replayRate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / replayRate) : 0;
+		long nextNanos = System.nanoTime();
+		int replayed = 0;
+
+		while (!isClosed()) {
+			List<SpillLog.SpilledMessage> batch;
+			try {
+				batch = spillLog.peek(REPLAY_BATCH_SIZE);
+			} catch (Exception e) {
+				trace.log(TraceLevel.ERROR, "Failed to read spilled message: " + e.getMessage()); //$NON-NLS-1$
+				return;
+			}
+			if (batch.isEmpty()) {
+				replayLag.setValue(0);
+				break;
+			}
+			replayLag.setValue(Math.max(0, System.currentTimeMillis() - batch.get(0).timestamp));
+
+			try {
+				for (SpillLog.SpilledMessage spilled : batch) {
+					if (intervalNanos > 0) {
+						long waitNanos = nextNanos - System.nanoTime();
+						if (waitNanos > 0) {
+							TimeUnit.NANOSECONDS.sleep(waitNanos);
+						}
+						nextNanos = Math.max(nextNanos, System.nanoTime() - intervalNanos) + intervalNanos;
+					}
+					publisher.publish(spilled.exchangeName, spilled.routingKey, spilled.props, spilled.message);
+				}
+				if (!publisher.awaitConfirms()) {
+					trace.log(TraceLevel.WARN, "Broker rejected replayed messages, they will be replayed again."); //$NON-NLS-1$
+					return;
+				}
+			} catch (InterruptedException e) {
+				throw e;
+			} catch (Exception e) {
+				// try again once the connection is back
+				trace.log(TraceLevel.WARN, "Failed to replay spilled message: " + e.getMessage()); //$NON-NLS-1$
+				return;
+			}
+			spillLog.remove(batch.size());
+			replayed += batch.size();
+		}
+
+		if (replayed > 0) {
+			trace.log(TraceLevel.INFO, "Replayed " + replayed + " spilled message(s)."); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+	}
+}